@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps direct ByteBuffers for reuse, so buffers of messages need neither
+ * heap allocation nor the cost of allocating direct memory each time.
+ * Buffers come in powers of two from 256 bytes to 1 MB; larger ones are
+ * allocated and left to the garbage collector. A buffer which is never
+ * given back is collected as any other, so forgetting to release() costs
+ * speed, not memory.
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+
+	/*
+	 * Stacks of free buffers by size class, each guarded by its array.
+	 */
+	private final ByteBuffer[][] free;
+	private final int[] count;
+
+	/**
+	 *
+	 * @param buffersPerSize The most free buffers kept of each size.
+	 */
+	public BufferPool(int buffersPerSize) {
+		free = new ByteBuffer[MAX_SHIFT + 1][buffersPerSize];
+		count = new int[MAX_SHIFT + 1];
+	}
+
+	/**
+	 *
+	 * @return A buffer with position 0 and limit size, holding garbage.
+	 */
+	public ByteBuffer acquire(int size) {
+		int shift = shiftOf(size);
+		if (shift > MAX_SHIFT) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = null;
+		ByteBuffer[] stack = free[shift];
+		synchronized (stack) {
+			if (count[shift] > 0) {
+				buffer = stack[--count[shift]];
+				stack[count[shift]] = null;
+			}
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(1 << shift);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Takes a buffer from acquire() back. It must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		int shift = shiftOf(buffer.capacity());
+		if (shift > MAX_SHIFT || buffer.capacity() != 1 << shift || !buffer.isDirect()) {
+			return;
+		}
+		ByteBuffer[] stack = free[shift];
+		synchronized (stack) {
+			if (count[shift] < stack.length) {
+				stack[count[shift]++] = buffer;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The smallest shift, at least MIN_SHIFT, with size <= 1 << shift.
+	 */
+	private static int shiftOf(int size) {
+		if (size <= 1 << MIN_SHIFT) {
+			return MIN_SHIFT;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
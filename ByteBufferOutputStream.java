@@ -0,0 +1,87 @@
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a direct ByteBuffer, which grows as needed and is reused
+ * after reset(), so it can be handed to a channel without copying.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+	private ByteBuffer buffer;
+
+	public ByteBufferOutputStream(int initialSize) {
+		buffer = ByteBuffer.allocateDirect(initialSize);
+	}
+
+	public void write(int b) {
+		ensureRoom(1);
+		buffer.put((byte)b);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensureRoom(len);
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 *
+	 * @return The number of bytes written since reset().
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Overwrites four bytes already written, e.g. a length written as 0.
+	 */
+	public void putInt(int at, int value) {
+		buffer.putInt(at, value);
+	}
+
+	/**
+	 *
+	 * @return A heap buffer holding the bytes written from start to end.
+	 */
+	public ByteBuffer copy(int start, int end) {
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(end);
+		bytes.position(start);
+		ByteBuffer copy = ByteBuffer.allocate(end - start);
+		copy.put(bytes);
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Forgets what was written after the first size bytes.
+	 */
+	public void truncate(int size) {
+		buffer.position(size);
+	}
+
+	/**
+	 * Forgets what was written.
+	 */
+	public void reset() {
+		buffer.clear();
+	}
+
+	/**
+	 *
+	 * @return The buffer, flipped to be read from 0 to what was written.
+	 *         Valid until the next write or reset().
+	 */
+	public ByteBuffer toBuffer() {
+		buffer.flip();
+		return buffer;
+	}
+
+	private void ensureRoom(int length) {
+		if (buffer.remaining() >= length) {
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(2 * buffer.capacity(), buffer.position() + length));
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+}
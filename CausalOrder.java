@@ -0,0 +1,122 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * CAUSAL delivery. A message carries the vector clock of its member when
+ * put, is passed on at once, and is delivered as soon as everything its
+ * member had delivered when putting it has been delivered here, without
+ * waiting for an ACK lap. Messages which arrive too early wait in
+ * causallyWaiting.
+ */
+public class CausalOrder<E extends Serializable> implements OrderingEngine<E> {
+    private GroupContext<E> group;
+    private final Object clockLock = new Object();
+    private VectorClock clock;
+    private boolean[] heardFrom;
+    private List<Message<E>> causallyWaiting;
+
+    public CausalOrder() {
+        clock = new VectorClock();
+        heardFrom = new boolean[0];
+        causallyWaiting = new LinkedList<Message<E>>();
+    }
+
+    public void start(GroupContext<E> group) {
+        this.group = group;
+    }
+
+    public void put(Message<E> msg) {
+        int thisMember = group.getMemberId();
+        synchronized (clockLock) {
+            msg.setSequence(clock.get(thisMember));
+            msg.setClock(clock.copy());
+            clock.increment(thisMember);
+            group.disseminate(msg);
+        }
+    }
+
+    public void receive(Message<E> msg) {
+        int member = msg.getMember();
+        int thisMember = group.getMemberId();
+        if (member == thisMember) {
+            group.completed(msg);
+            return;
+        }
+        synchronized (clockLock) {
+            if (member >= heardFrom.length)
+                heardFrom = Arrays.copyOf(heardFrom,
+                        Math.max(member + 1, 2 * heardFrom.length));
+            if (!heardFrom[member]) {
+                // Whatever the member sent before we joined, we never get,
+                // so the first message we see sets where it starts.
+                heardFrom[member] = true;
+                clock.set(member, Math.max(clock.get(member),
+                            msg.getSequence()));
+                VectorClock deps = msg.getClock();
+                for (int id = 0; id < deps.size(); id++) {
+                    if (id != thisMember && (id >= heardFrom.length
+                                || !heardFrom[id]))
+                        clock.set(id, Math.max(clock.get(id), deps.get(id)));
+                }
+            }
+            if (msg.getSequence() < clock.get(member))
+                return; // Already delivered
+            group.disseminate(msg);
+            if (!deliverIfCausallyReady(msg)) {
+                msg.retain();
+                causallyWaiting.add(msg);
+                return;
+            }
+            boolean delivered = true;
+            while (delivered && !causallyWaiting.isEmpty()) {
+                delivered = false;
+                Iterator<Message<E>> waiting = causallyWaiting.iterator();
+                while (waiting.hasNext()) {
+                    Message<E> next = waiting.next();
+                    if (deliverIfCausallyReady(next)) {
+                        waiting.remove();
+                        next.release();
+                        delivered = true;
+                    }
+                }
+            }
+        }
+    }
+
+    public void stop() {
+    }
+
+    public int heldBack() {
+        synchronized (clockLock) {
+            return causallyWaiting.size();
+        }
+    }
+
+    /**
+     * One per member, as a message arriving before those it depends on
+     * waits for them.
+     */
+    public Object streamOf(Message<E> msg) {
+        if (msg.getType() != Message.Type.DATA)
+            return null;
+        return msg.getMember();
+    }
+
+    /**
+     * Must be called holding clockLock.
+     *
+     * @return Whether the message could be delivered.
+     */
+    private boolean deliverIfCausallyReady(Message<E> msg) {
+        int member = msg.getMember();
+        if (msg.getSequence() != clock.get(member)
+                || !clock.coversExcept(msg.getClock(), member))
+            return false;
+        group.deliver(msg);
+        clock.increment(member);
+        return true;
+    }
+}
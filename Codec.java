@@ -0,0 +1,33 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * Turns objects of class E into bytes and back. Used by the framed sending
+ * and receiving ends to write each object as one frame. Implementations are
+ * shared between the threads of a queue, so they must not keep state between
+ * calls.
+ *
+ */
+public interface Codec<E> {
+
+	/**
+	 * Writes an object.
+	 *
+	 * @param object The object to write.
+	 * @param out The stream to write the object to.
+	 * @throws IOException if the object cannot be written.
+	 */
+	public void encode(E object, DataOutputStream out) throws IOException;
+
+	/**
+	 * Reads an object written by encode().
+	 *
+	 * @param in The stream holding exactly one encoded object.
+	 * @return The object read.
+	 * @throws IOException if the bytes are not a valid encoding.
+	 */
+	public E decode(DataInputStream in) throws IOException;
+
+}
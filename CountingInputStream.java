@@ -0,0 +1,38 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds the bytes read through it to a counter.
+ */
+public class CountingInputStream extends FilterInputStream {
+	private final LongAdder bytes;
+
+	public CountingInputStream(InputStream in, LongAdder bytes) {
+		super(in);
+		this.bytes = bytes;
+	}
+
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			bytes.increment();
+		}
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			bytes.add(read);
+		}
+		return read;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		bytes.add(skipped);
+		return skipped;
+	}
+}
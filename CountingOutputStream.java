@@ -0,0 +1,27 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds the bytes written through it to a counter. Put it under the buffer
+ * of a connection, so it counts what reaches the socket, once per flush.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private final LongAdder bytes;
+
+	public CountingOutputStream(OutputStream out, LongAdder bytes) {
+		super(out);
+		this.bytes = bytes;
+	}
+
+	public void write(int b) throws IOException {
+		out.write(b);
+		bytes.increment();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		bytes.add(len);
+	}
+}
@@ -0,0 +1,206 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class DeliveryCheckExample {
+    /**
+     * The fanout of the TreeDissemination set on the peers, 0 for none.
+     */
+    private static int fanout;
+
+    /**
+     * How the peers send to each other: "tcp", "local" for a LocalTransport
+     * handing over the messages themselves, or "copy" for one copying them.
+     */
+    private static String transport;
+
+    /**
+     * Checks the delivery guarantees on a ring of peers in this JVM, for
+     * each delivery guarantee and for TOTAL order through a sequencer. All
+     * peers put messages at once, and poll between their puts, so later
+     * messages depend on earlier ones. Every peer must get every message of
+     * the others once; with FIFO and stronger in the order each was put;
+     * with CAUSAL after every message its sender had got before putting
+     * it; and with TOTAL in the same order as every other peer.
+     * Call with "[peers [messages [fanout [port [transport]]]]]", defaults
+     * are 4 peers, 2000 messages from each, no tree, ports from 43000 on and
+     * "tcp". Exits with 1 if a check fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        fanout = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 43000;
+        transport = args.length > 4 ? args[4] : "tcp";
+        MulticastQueue.DeliveryGuarantee[] guarantees = {
+            MulticastQueue.DeliveryGuarantee.NONE,
+            MulticastQueue.DeliveryGuarantee.FIFO,
+            MulticastQueue.DeliveryGuarantee.CAUSAL,
+            MulticastQueue.DeliveryGuarantee.TOTAL };
+        boolean passed = true;
+        for (MulticastQueue.DeliveryGuarantee guarantee : guarantees) {
+            passed &= report(guarantee.toString(),
+                    check(guarantee, false, peers, messages, port));
+            port += peers;
+        }
+        passed &= report("TOTAL (sequencer)",
+                check(MulticastQueue.DeliveryGuarantee.TOTAL, true, peers,
+                    messages, port));
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean report(String name, String failure) {
+        System.out.println(name + ": " + (failure == null ? "OK" : failure));
+        return failure == null;
+    }
+
+    /**
+     * Builds a ring, lets every peer put and poll, and checks what each
+     * one got. The ring is left running, main() exits when done.
+     *
+     * @return What is wrong, null if nothing.
+     */
+    private static String check(MulticastQueue.DeliveryGuarantee guarantee,
+            boolean sequencer, final int peers, final int messages, int port)
+            throws Exception {
+        final List<MulticastQueueImpl<String>> ring =
+            new ArrayList<MulticastQueueImpl<String>>();
+        for (int i = 0; i < peers; i++) {
+            MulticastQueueImpl<String> peer = newPeer(port + i);
+            if (sequencer)
+                peer.setOrderingEngine(new SequencerTotalOrder<String>());
+            if (fanout > 0)
+                peer.setDissemination(new TreeDissemination(fanout));
+            if (i == 0) {
+                peer.start();
+                peer.createGroup(port, guarantee);
+            } else {
+                peer.joinGroup(new InetSocketAddress("localhost", port),
+                        guarantee);
+                Thread.sleep(200);
+            }
+            ring.add(peer);
+        }
+        final List<List<String>> got = new ArrayList<List<String>>();
+        Thread[] threads = new Thread[peers];
+        for (int i = 0; i < peers; i++) {
+            final int index = i;
+            final List<String> polled = new ArrayList<String>();
+            got.add(polled);
+            threads[i] = new Thread() {
+                public void run() {
+                    putAndPoll(ring.get(index), index, peers, messages,
+                            polled);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int i = 0; i < peers; i++) {
+            String failure = checkPeer(guarantee, i, peers, messages,
+                    got.get(i));
+            if (failure != null)
+                return failure;
+        }
+        if (guarantee == MulticastQueue.DeliveryGuarantee.TOTAL) {
+            for (int i = 0; i < peers; i++) {
+                for (int j = i + 1; j < peers; j++) {
+                    if (!without(got.get(i), j).equals(without(got.get(j), i)))
+                        return "peers " + i + " and " + j
+                            + " got the messages in another order";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts messages saying how many messages from each peer this one has
+     * got, polling in between, and then polls until it has got all the
+     * messages of the others or none comes for ten seconds.
+     */
+    private static void putAndPoll(MulticastQueueImpl<String> peer,
+            int index, int peers, int messages, List<String> polled) {
+        int[] counts = new int[peers];
+        String msg;
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            text.append(index).append(':').append(i);
+            for (int count : counts)
+                text.append(':').append(count);
+            peer.put(text.toString());
+            while ((msg = peer.tryPoll()) != null) {
+                polled.add(msg);
+                counts[sender(msg)]++;
+            }
+        }
+        while (polled.size() < (peers - 1) * messages
+                && (msg = peer.poll(10, TimeUnit.SECONDS)) != null)
+            polled.add(msg);
+    }
+
+    /**
+     * @return What is wrong with the messages one peer got, null if
+     *         nothing.
+     */
+    private static String checkPeer(MulticastQueue.DeliveryGuarantee guarantee,
+            int index, int peers, int messages, List<String> polled) {
+        boolean[][] seen = new boolean[peers][messages];
+        int[] counts = new int[peers];
+        for (String msg : polled) {
+            String[] fields = msg.split(":");
+            int sender = Integer.parseInt(fields[0]);
+            int number = Integer.parseInt(fields[1]);
+            if (sender == index)
+                return "peer " + index + " got its own message " + msg;
+            if (seen[sender][number])
+                return "peer " + index + " got " + msg + " twice";
+            seen[sender][number] = true;
+            if (guarantee != MulticastQueue.DeliveryGuarantee.NONE
+                    && number != counts[sender])
+                return "peer " + index + " got " + msg + " out of order";
+            if (guarantee == MulticastQueue.DeliveryGuarantee.CAUSAL) {
+                for (int peer = 0; peer < peers; peer++) {
+                    if (peer != sender && peer != index
+                            && counts[peer] < Integer.parseInt(fields[2 + peer]))
+                        return "peer " + index + " got " + msg
+                            + " before a message its sender had got";
+                }
+            }
+            counts[sender]++;
+        }
+        if (polled.size() < (peers - 1) * messages)
+            return "peer " + index + " got " + polled.size() + " of "
+                + (peers - 1) * messages + " messages";
+        return null;
+    }
+
+    private static int sender(String msg) {
+        return Integer.parseInt(msg.substring(0, msg.indexOf(':')));
+    }
+
+    /**
+     * @return The messages without those put by a peer.
+     */
+    private static List<String> without(List<String> polled, int index) {
+        List<String> rest = new ArrayList<String>();
+        for (String msg : polled) {
+            if (sender(msg) != index)
+                rest.add(msg);
+        }
+        return rest;
+    }
+
+    private static MulticastQueueImpl<String> newPeer(int port) {
+        if (transport.equals("local"))
+            return new MulticastQueueImpl<String>(port,
+                    new LocalTransport<Message<String>>());
+        if (transport.equals("copy"))
+            return new MulticastQueueImpl<String>(port,
+                    new LocalTransport<Message<String>>(
+                        new MessageCodec<String>()));
+        return new MulticastQueueImpl<String>(port);
+    }
+}
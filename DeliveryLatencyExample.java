@@ -0,0 +1,101 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeliveryLatencyExample {
+    /**
+     * Whether the peers talk through a LocalTransport instead of loopback.
+     */
+    private static boolean local;
+
+    /**
+     * Measures the time from put() at one peer until poll() returns the
+     * message at another peer, for each delivery guarantee, for TOTAL
+     * order through a sequencer and for FIFO down a binary tree, on a ring
+     * of peers in this JVM talking over loopback, or handing messages
+     * over directly with "local".
+     * Call with "[peers [messages [port [local]]]]", defaults are 4 peers,
+     * 2000 messages and ports from 42000 on.
+     */
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 42000;
+        local = args.length > 3 && args[3].equals("local");
+        MulticastQueue.DeliveryGuarantee[] guarantees = {
+            MulticastQueue.DeliveryGuarantee.NONE,
+            MulticastQueue.DeliveryGuarantee.FIFO,
+            MulticastQueue.DeliveryGuarantee.CAUSAL,
+            MulticastQueue.DeliveryGuarantee.TOTAL };
+        for (MulticastQueue.DeliveryGuarantee guarantee : guarantees) {
+            report(guarantee.toString(),
+                    measure(guarantee, false, 0, peers, messages, port));
+            port += peers;
+        }
+        report("TOTAL (sequencer)",
+                measure(MulticastQueue.DeliveryGuarantee.TOTAL, true, 0,
+                    peers, messages, port));
+        port += peers;
+        report("FIFO (tree)",
+                measure(MulticastQueue.DeliveryGuarantee.FIFO, false, 2,
+                    peers, messages, port));
+        System.exit(0);
+    }
+
+    private static void report(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.println(name + ": median "
+                + latencies[latencies.length / 2] / 1000 + " us, 99% "
+                + latencies[latencies.length * 99 / 100] / 1000 + " us");
+    }
+
+    /**
+     * Builds a ring, lets the first peer put messages one at a time, and
+     * records how long each one takes to reach the peer farthest along
+     * the ring, or the last member if the messages go down a tree with the
+     * given fanout. The ring is left running, main() exits when done.
+     */
+    private static long[] measure(MulticastQueue.DeliveryGuarantee guarantee,
+            boolean sequencer, int fanout, int peers, int messages, int port)
+            throws Exception {
+        List<MulticastQueueImpl<Long>> ring =
+            new ArrayList<MulticastQueueImpl<Long>>();
+        for (int i = 0; i < peers; i++) {
+            MulticastQueueImpl<Long> peer = newPeer(port + i);
+            if (sequencer)
+                peer.setOrderingEngine(new SequencerTotalOrder<Long>());
+            if (fanout > 0)
+                peer.setDissemination(new TreeDissemination(fanout));
+            if (i == 0) {
+                peer.start();
+                peer.createGroup(port, guarantee);
+            } else {
+                // Join at the last peer, so the ring is 0, 1, ..., peers-1
+                peer.joinGroup(new InetSocketAddress("localhost", port + i - 1),
+                        guarantee);
+                Thread.sleep(200);
+            }
+            ring.add(peer);
+        }
+        MulticastQueueImpl<Long> first = ring.get(0);
+        MulticastQueueImpl<Long> last = ring.get(peers - 1);
+        long[] latencies = new long[messages];
+        // The first round warms up the JIT and is thrown away
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < messages; i++) {
+                first.put(System.nanoTime());
+                long sent = last.poll();
+                latencies[i] = System.nanoTime() - sent;
+            }
+        }
+        return latencies;
+    }
+
+    private static MulticastQueueImpl<Long> newPeer(int port) {
+        if (local)
+            return new MulticastQueueImpl<Long>(port,
+                    new LocalTransport<Message<Long>>());
+        return new MulticastQueueImpl<Long>(port);
+    }
+}
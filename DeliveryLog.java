@@ -0,0 +1,683 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of objects in files mapped into memory, e.g. of the
+ * messages a MulticastQueueImpl delivers, see setDeliveryLog(). Each object
+ * gets the next offset, counting from 0, and replay() reads the objects
+ * back in order from any offset, also after a restart.
+ *
+ * The log is a directory of segments, named by the offset of their first
+ * object. NAME.log holds the records, each the length of the object as
+ * written by the Codec, the CRC32 of those bytes, and the bytes. NAME.index
+ * holds an offset and the position of its record for about every
+ * INDEX_INTERVAL bytes of records, so replay() finds an offset by a binary
+ * search and a short scan. When a segment is full, appending moves on to
+ * a new one.
+ *
+ * append() only copies into memory. The pages are forced to disk by a
+ * thread of the log every sync interval, for all objects appended since
+ * at once, so a crash of the JVM loses nothing, and one of the machine at
+ * most the objects of the last interval. A record torn by it fails its
+ * CRC when the log is opened again, and the log ends before it. To know
+ * where to look, the index of a full segment ends with the number of its
+ * objects once they are on disk; the segments without it are checked.
+ */
+public class DeliveryLog<E> {
+
+	/*
+	 * The length and the CRC of a record.
+	 */
+	private static final int RECORD_HEAD = 8;
+
+	/*
+	 * Bytes of records between entries in the index, and the bytes of an
+	 * entry: the offset, from the first of the segment, and the position.
+	 */
+	private static final int INDEX_INTERVAL = 4096;
+	private static final int INDEX_ENTRY = 8;
+
+	/*
+	 * At the end of the index, the objects of a full segment plus one,
+	 * once they are on disk.
+	 */
+	private static final int INDEX_TRAILER = 8;
+
+	private static final int DEFAULT_SEGMENT_BYTES = 1 << 26;
+	private static final long DEFAULT_SYNC_MILLIS = 100;
+
+	private final File directory;
+	private final Codec<E> codec;
+
+	/*
+	 * Oldest first; the last is the one appended to. Guarded by this.
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private long nextOffset;
+	private final int segmentBytes;
+	private boolean closed;
+
+	/*
+	 * Full segments not yet forced since they filled up. Guarded by this.
+	 */
+	private final List<Segment> unsynced = new ArrayList<Segment>();
+
+	/*
+	 * Objects before this offset are on disk. Only one sync() at a time.
+	 */
+	private volatile long syncedOffset;
+	private final Object syncLock = new Object();
+	private Timer syncTimer;
+
+	/*
+	 * Used by append() to encode into the current segment.
+	 */
+	private final RecordOutputStream record = new RecordOutputStream();
+	private final DataOutputStream forEncoding = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+
+	private final LongAdder objectsAppended = new LongAdder();
+	private final LongAdder bytesAppended = new LongAdder();
+	private final LongAdder syncs = new LongAdder();
+	private final Histogram appendTime = new Histogram();
+	private final Histogram syncTime = new Histogram();
+
+	/**
+	 * Opens a log with segments of 64 MB.
+	 */
+	public DeliveryLog(File directory, Codec<E> codec) throws IOException {
+		this(directory, codec, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Opens the log in a directory, made if missing, and syncs it every
+	 * 100 milliseconds. A log left there before is recovered: the objects
+	 * appended go after those it holds.
+	 *
+	 * @param directory Where the segments are kept. Only one log may use it.
+	 * @param codec Writes the objects into records and reads them back.
+	 * @param segmentBytes The size of the segments made. An object must fit
+	 *                     in one.
+	 */
+	public DeliveryLog(File directory, Codec<E> codec, int segmentBytes) throws IOException {
+		if (segmentBytes < INDEX_INTERVAL) {
+			throw new IllegalArgumentException("Segments must hold at least " + INDEX_INTERVAL + " bytes");
+		}
+		this.directory = directory;
+		this.codec = codec;
+		this.segmentBytes = segmentBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot make directory " + directory);
+		}
+		long[] bases = findSegments();
+		for (int i = 0; i < bases.length && current == null; i++) {
+			boolean last = i == bases.length - 1;
+			Segment segment = last ? null : openFull(bases[i], bases[i + 1]);
+			if (segment == null) {
+				segment = recover(bases[i]);
+				if (!last && segment.count == bases[i + 1] - bases[i]) {
+					unsynced.add(segment);
+				} else {
+					current = segment;
+					if (!last) {
+						System.err.println("Log " + directory + " ends at torn record " + (segment.base + segment.count) + ", dropping the objects after it");
+						for (int j = i + 1; j < bases.length; j++) {
+							delete(bases[j]);
+						}
+					}
+				}
+			}
+			segments.add(segment);
+		}
+		if (current == null) {
+			current = newSegment(0, segmentBytes);
+			segments.add(current);
+		}
+		nextOffset = current.base + current.count;
+		syncedOffset = nextOffset;
+		setSyncInterval(DEFAULT_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * How often the objects appended are forced to disk, all at once.
+	 *
+	 * @param interval 0 to only force them in sync() and close().
+	 */
+	public synchronized void setSyncInterval(long interval, TimeUnit unit) {
+		if (syncTimer != null) {
+			syncTimer.cancel();
+			syncTimer = null;
+		}
+		long millis = unit.toMillis(interval);
+		if (millis > 0 && !closed) {
+			syncTimer = new Timer("delivery log sync", true);
+			syncTimer.schedule(new TimerTask() {
+					public void run() {
+						sync();
+					}
+				}, millis, millis);
+		}
+	}
+
+	/**
+	 * Names the counters in metrics: objectsAppended, bytesAppended and
+	 * syncs; the appendTime and syncTime histograms; and the unsynced
+	 * gauge, the objects appended but not yet on disk.
+	 *
+	 * @param metrics Where to add the counters.
+	 * @param prefix Put in front of each name, e.g. "log.".
+	 */
+	public void setMetrics(Metrics metrics, String prefix) {
+		metrics.add(prefix + "objectsAppended", objectsAppended);
+		metrics.add(prefix + "bytesAppended", bytesAppended);
+		metrics.add(prefix + "syncs", syncs);
+		metrics.add(prefix + "appendTime", appendTime);
+		metrics.add(prefix + "syncTime", syncTime);
+		metrics.add(prefix + "unsynced", new Metrics.Gauge() {
+				public long value() {
+					return nextOffset() - syncedOffset;
+				}
+			});
+	}
+
+	/**
+	 * Appends an object after the others. It is on disk after the next sync.
+	 *
+	 * @return The offset of the object.
+	 */
+	public synchronized long append(E object) throws IOException {
+		if (closed) {
+			throw new IOException("The log is closed");
+		}
+		long start = System.nanoTime();
+		if (!tryAppend(object)) {
+			if (current.count > 0) {
+				roll();
+			}
+			if (!tryAppend(object)) {
+				throw new IOException("An object does not fit in a segment of " + current.records.capacity() + " bytes");
+			}
+		}
+		appendTime.recordSince(start);
+		objectsAppended.increment();
+		return nextOffset++;
+	}
+
+	/**
+	 * Hands the objects from an offset on to a callback, in order, up to
+	 * those appended when replay() was called. Runs on the thread of the
+	 * caller, at the same time as append() if need be. Objects which are
+	 * ReferenceCounted are handed over with a reference the callback must
+	 * release.
+	 *
+	 * @param from The offset of the first object, from firstOffset() to
+	 *             nextOffset().
+	 * @return The offset after the last object replayed.
+	 */
+	public long replay(long from, Callback<E> callback) throws IOException {
+		Segment[] replayed;
+		int[] entries, ends;
+		long end;
+		synchronized (this) {
+			replayed = segments.toArray(new Segment[segments.size()]);
+			entries = new int[replayed.length];
+			ends = new int[replayed.length];
+			for (int i = 0; i < replayed.length; i++) {
+				entries[i] = replayed[i].entries;
+				ends[i] = replayed[i].count;
+			}
+			end = nextOffset;
+		}
+		if (from < replayed[0].base || from > end) {
+			throw new IllegalArgumentException("Offset " + from + " is not in the log, which holds " + replayed[0].base + " to " + end);
+		}
+		RecordInputStream in = new RecordInputStream();
+		DataInputStream forDecoding = new DataInputStream(in);
+		CRC32 check = new CRC32();
+		for (int i = 0; i < replayed.length; i++) {
+			Segment segment = replayed[i];
+			if (segment.base + ends[i] <= from) {
+				continue;
+			}
+			ByteBuffer records = segment.records.duplicate();
+			int skip = (int)(Math.max(from, segment.base) - segment.base);
+			int at = segment.find(skip, entries[i], records);
+			for (long offset = segment.base + skip; offset < segment.base + ends[i]; offset++) {
+				int length = records.getInt(at);
+				records.limit(at + RECORD_HEAD + length).position(at + RECORD_HEAD);
+				check.reset();
+				check.update(records.duplicate());
+				if ((int)check.getValue() != records.getInt(at + 4)) {
+					throw new IOException("Record " + offset + " in " + directory + " is corrupt");
+				}
+				in.point(records);
+				callback.result(codec.decode(forDecoding));
+				records.limit(records.capacity());
+				at += RECORD_HEAD + length;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 *
+	 * @return The offset of the oldest object kept.
+	 */
+	public synchronized long firstOffset() {
+		return segments.get(0).base;
+	}
+
+	/**
+	 *
+	 * @return The offset the next object appended gets.
+	 */
+	public synchronized long nextOffset() {
+		return nextOffset;
+	}
+
+	/**
+	 *
+	 * @return The objects before this offset are on disk.
+	 */
+	public long syncedOffset() {
+		return syncedOffset;
+	}
+
+	/**
+	 * Forces the objects appended so far to disk, now. Called by the thread
+	 * of the log every sync interval; appending goes on meanwhile.
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			List<Segment> full;
+			Segment appended;
+			long offset;
+			synchronized (this) {
+				offset = nextOffset;
+				if (offset == syncedOffset && unsynced.isEmpty()) {
+					return;
+				}
+				full = new ArrayList<Segment>(unsynced);
+				unsynced.clear();
+				appended = current;
+			}
+			long start = System.nanoTime();
+			for (Segment segment : full) {
+				segment.records.force();
+				segment.index.putLong(segment.index.capacity() - INDEX_TRAILER, segment.count + 1);
+				segment.index.force();
+			}
+			appended.records.force();
+			appended.index.force();
+			syncTime.recordSince(start);
+			syncs.increment();
+			syncedOffset = offset;
+		}
+	}
+
+	/**
+	 * Deletes the segments holding only objects before an offset, e.g.
+	 * once those are no longer needed for replay. The segment appended to
+	 * is kept.
+	 */
+	public void deleteBefore(long offset) {
+		List<Segment> deleted = new ArrayList<Segment>();
+		synchronized (this) {
+			while (segments.size() > 1 && segments.get(1).base <= offset) {
+				deleted.add(segments.remove(0));
+			}
+			unsynced.removeAll(deleted);
+		}
+		for (Segment segment : deleted) {
+			delete(segment.base);
+		}
+	}
+
+	/**
+	 * Syncs the log and stops its thread. Nothing can be appended after.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		setSyncInterval(0, TimeUnit.MILLISECONDS);
+		sync();
+	}
+
+	/**
+	 * Encodes an object into the current segment after its last record.
+	 * Must be called holding the lock.
+	 *
+	 * @return Whether it fit.
+	 */
+	private boolean tryAppend(E object) throws IOException {
+		Segment segment = current;
+		int at = segment.end;
+		if (at + RECORD_HEAD >= segment.records.capacity()) {
+			return false;
+		}
+		ByteBuffer records = segment.records.duplicate();
+		records.position(at + RECORD_HEAD);
+		record.point(records);
+		try {
+			codec.encode(object, forEncoding);
+			forEncoding.flush();
+		} catch (SegmentFullException e) {
+			return false;
+		}
+		int length = records.position() - at - RECORD_HEAD;
+		if (length == 0) {
+			throw new IOException("The codec wrote nothing");
+		}
+		records.flip().position(at + RECORD_HEAD);
+		crc.reset();
+		crc.update(records);
+		segment.records.putInt(at + 4, (int)crc.getValue());
+		segment.records.putInt(at, length);
+		segment.added(length);
+		bytesAppended.add(RECORD_HEAD + length);
+		return true;
+	}
+
+	/**
+	 * Moves on to a new segment. It is synced along with the current one.
+	 * Must be called holding the lock.
+	 */
+	private void roll() throws IOException {
+		Segment full = current;
+		current = newSegment(nextOffset, segmentBytes);
+		segments.add(current);
+		unsynced.add(full);
+	}
+
+	/**
+	 *
+	 * @return The offsets in the names of the segments, in order.
+	 */
+	private long[] findSegments() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list " + directory);
+		}
+		long[] bases = new long[files.length];
+		int found = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".log")) {
+				try {
+					bases[found++] = Long.parseLong(name.substring(0, name.length() - 4));
+				} catch (NumberFormatException e) {
+					found--;
+				}
+			}
+		}
+		bases = Arrays.copyOf(bases, found);
+		Arrays.sort(bases);
+		return bases;
+	}
+
+	/**
+	 * Opens a segment which was full before the next was made.
+	 *
+	 * @return null unless all its objects were on disk.
+	 */
+	private Segment openFull(long base, long nextBase) throws IOException {
+		File index = indexFileOf(base);
+		if (index.length() < INDEX_TRAILER) {
+			return null;
+		}
+		Segment segment = new Segment(base, map(logFileOf(base), -1, FileChannel.MapMode.READ_ONLY),
+				map(index, -1, FileChannel.MapMode.READ_ONLY));
+		segment.count = (int)(nextBase - base);
+		if (segment.index.getLong(segment.index.capacity() - INDEX_TRAILER) != segment.count + 1) {
+			return null;
+		}
+		while (segment.entries < (segment.index.capacity() - INDEX_TRAILER) / INDEX_ENTRY
+				&& segment.index.getInt(segment.entries * INDEX_ENTRY + 4) != 0) {
+			segment.entries++;
+		}
+		return segment;
+	}
+
+	/**
+	 * Opens a segment which may not be on disk as a whole, keeping the
+	 * records up to the first torn one, and indexes it again.
+	 */
+	private Segment recover(long base) throws IOException {
+		File file = logFileOf(base);
+		int end = 0;
+		RandomAccessFile records = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = records.getChannel();
+			long size = channel.size();
+			ByteBuffer head = ByteBuffer.allocate(RECORD_HEAD);
+			ByteBuffer bytes = ByteBuffer.allocate(0);
+			CRC32 check = new CRC32();
+			while (end + RECORD_HEAD <= size) {
+				head.clear();
+				readFully(channel, head, end);
+				int length = head.getInt(0);
+				if (length <= 0 || end + RECORD_HEAD + (long)length > size) {
+					break;
+				}
+				if (bytes.capacity() < length) {
+					bytes = ByteBuffer.allocate(length);
+				}
+				bytes.clear().limit(length);
+				readFully(channel, bytes, end + RECORD_HEAD);
+				check.reset();
+				check.update(bytes.array(), 0, length);
+				if ((int)check.getValue() != head.getInt(4)) {
+					break;
+				}
+				end += RECORD_HEAD + length;
+			}
+			// Zeroes what follows, so it is not mistaken for records later
+			channel.truncate(end);
+			channel.force(true);
+		} finally {
+			records.close();
+		}
+		if (!indexFileOf(base).delete() && indexFileOf(base).exists()) {
+			throw new IOException("Cannot index " + file + " again");
+		}
+		Segment segment = newSegment(base, Math.max(segmentBytes, end + RECORD_HEAD));
+		while (segment.end < end) {
+			segment.added(segment.records.getInt(segment.end));
+		}
+		return segment;
+	}
+
+	private Segment newSegment(long base, int capacity) throws IOException {
+		return new Segment(base, map(logFileOf(base), capacity, FileChannel.MapMode.READ_WRITE),
+				map(indexFileOf(base), (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY + INDEX_TRAILER, FileChannel.MapMode.READ_WRITE));
+	}
+
+	private void delete(long base) {
+		if (!logFileOf(base).delete() || !indexFileOf(base).delete()) {
+			System.err.println("Could not delete segment " + base + " of " + directory);
+		}
+	}
+
+	/**
+	 *
+	 * @param size The size to give the file, -1 to map it as it is.
+	 */
+	private static MappedByteBuffer map(File file, long size, FileChannel.MapMode mode) throws IOException {
+		RandomAccessFile opened = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			if (size >= 0) {
+				opened.setLength(size);
+			}
+			// The mapping stays valid after the file is closed
+			return opened.getChannel().map(mode, 0, opened.length());
+		} finally {
+			opened.close();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private File logFileOf(long base) {
+		return new File(directory, String.format("%020d.log", base));
+	}
+
+	private File indexFileOf(long base) {
+		return new File(directory, String.format("%020d.index", base));
+	}
+
+	/**
+	 * The mapped records and index of a segment. The fields change only
+	 * while the log is locked.
+	 */
+	private static class Segment {
+		final long base;
+		final MappedByteBuffer records;
+		final MappedByteBuffer index;
+
+		/*
+		 * The objects and the bytes of records held, the entries in the
+		 * index, and the position of the record last indexed.
+		 */
+		int count;
+		int end;
+		int entries;
+		int indexed;
+
+		Segment(long base, MappedByteBuffer records, MappedByteBuffer index) {
+			this.base = base;
+			this.records = records;
+			this.index = index;
+		}
+
+		/**
+		 * Counts a record written at end, indexing it if it starts at
+		 * least INDEX_INTERVAL bytes after the one last indexed. The first
+		 * record is found without the index.
+		 */
+		void added(int length) {
+			if (end - indexed >= INDEX_INTERVAL && (entries + 1) * INDEX_ENTRY <= index.capacity() - INDEX_TRAILER) {
+				index.putInt(entries * INDEX_ENTRY, count);
+				index.putInt(entries * INDEX_ENTRY + 4, end);
+				entries++;
+				indexed = end;
+			}
+			end += RECORD_HEAD + length;
+			count++;
+		}
+
+		/**
+		 * Finds the record of an object, from the last entry of the index
+		 * before it.
+		 *
+		 * @param skip The offset of the object from base.
+		 * @param entries The entries of the index to search.
+		 * @return The position of the record.
+		 */
+		int find(int skip, int entries, ByteBuffer records) {
+			int low = 0, high = entries - 1, at = 0, counted = 0;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int offset = index.getInt(middle * INDEX_ENTRY);
+				if (offset <= skip) {
+					counted = offset;
+					at = index.getInt(middle * INDEX_ENTRY + 4);
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			for (; counted < skip; counted++) {
+				at += RECORD_HEAD + records.getInt(at);
+			}
+			return at;
+		}
+	}
+
+	/**
+	 * Thrown by RecordOutputStream when the segment is full. Made once, as
+	 * it is only used to give up on the segment.
+	 */
+	private static class SegmentFullException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		static final SegmentFullException INSTANCE = new SegmentFullException();
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * Writes into a mapped segment from its position up to its limit.
+	 */
+	private static class RecordOutputStream extends OutputStream {
+		private ByteBuffer buffer;
+
+		void point(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				throw SegmentFullException.INSTANCE;
+			}
+			buffer.put((byte)b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (buffer.remaining() < len) {
+				throw SegmentFullException.INSTANCE;
+			}
+			buffer.put(b, off, len);
+		}
+	}
+
+	/**
+	 * Reads a record of a mapped segment, from its position up to its limit.
+	 */
+	private static class RecordInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		void point(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Decides which members a peer passes a message on to, instead of passing
+ * it on to the next peer on the ring. A message must reach every member
+ * once, starting from the member which put it, so all peers in a group
+ * must use the same kind of dissemination.
+ */
+public interface Dissemination {
+
+    /**
+     * @param origin     The member which put the message.
+     * @param thisMember The member passing the message on.
+     * @param members    The current members of the group.
+     * @return The IDs of the members to pass the message on to, none if
+     *         this member is the last to get it.
+     */
+    public int[] forwardTo(int origin, int thisMember, Membership members);
+
+}
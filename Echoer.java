@@ -1,4 +1,12 @@
+import java.util.ArrayList;
+import java.util.List;
+
 public class Echoer extends Thread {
+    /**
+     * The most messages printed at a time.
+     */
+    private static final int BATCH_SIZE = 256;
+
     MulticastQueueImpl<String> queue;
 
     public Echoer(MulticastQueueImpl queue) {
@@ -7,11 +15,21 @@ public class Echoer extends Thread {
     }
 
     public void run() {
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        StringBuilder lines = new StringBuilder();
         while (true) {
             String msg = queue.poll();
             if (msg == null)
                 return;
-            System.out.println(msg);
+            lines.append(msg).append('\n');
+            // Print whatever arrived with it in one go
+            queue.drainTo(batch, BATCH_SIZE);
+            for (String next : batch)
+                lines.append(next).append('\n');
+            batch.clear();
+            System.out.print(lines);
+            System.out.flush();
+            lines.setLength(0);
         }
     }
 }
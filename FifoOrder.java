@@ -0,0 +1,117 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FIFO and NONE delivery. A message is delivered as soon as it arrives,
+ * for FIFO only once all earlier messages from its member are delivered,
+ * and then passed on. On the ring it stops when it comes back to its
+ * member, so no ACK is needed.
+ */
+public class FifoOrder<E extends Serializable> implements OrderingEngine<E> {
+    private GroupContext<E> group;
+    private boolean fifo;
+    private AtomicLong sequence;
+    private long[] nextSequence;
+    private Map<Integer, TreeMap<Long, Message<E>>> outOfOrder;
+    private volatile int heldBack;
+
+    /**
+     * @param fifo Whether messages from a member are delivered in the
+     *             order it put them (FIFO), or as they arrive (NONE).
+     */
+    public FifoOrder(boolean fifo) {
+        this.fifo = fifo;
+        sequence = new AtomicLong();
+        nextSequence = new long[0];
+        outOfOrder = new HashMap<Integer, TreeMap<Long, Message<E>>>();
+    }
+
+    public void start(GroupContext<E> group) {
+        this.group = group;
+    }
+
+    public void put(Message<E> msg) {
+        msg.setSequence(sequence.getAndIncrement());
+        group.disseminate(msg);
+    }
+
+    public void receive(Message<E> msg) {
+        int member = msg.getMember();
+        if (member == group.getMemberId()) {
+            group.completed(msg);
+            return;
+        }
+        if (!fifo) {
+            group.deliver(msg);
+            group.disseminate(msg);
+            return;
+        }
+        if (member >= nextSequence.length) {
+            int length = nextSequence.length;
+            nextSequence = Arrays.copyOf(nextSequence,
+                    Math.max(member + 1, 2 * length));
+            Arrays.fill(nextSequence, length, nextSequence.length, -1);
+        }
+        long expected = nextSequence[member];
+        if (expected < 0) {
+            // The first message we see from this member, who may have
+            // put messages before we joined.
+            expected = msg.getSequence();
+        }
+        if (msg.getSequence() < expected)
+            return; // Already delivered
+        group.disseminate(msg);
+        if (msg.getSequence() > expected) {
+            TreeMap<Long, Message<E>> waiting = outOfOrder.get(member);
+            if (waiting == null) {
+                waiting = new TreeMap<Long, Message<E>>();
+                outOfOrder.put(member, waiting);
+            }
+            msg.retain();
+            Message<E> duplicate = waiting.put(msg.getSequence(), msg);
+            if (duplicate != null)
+                duplicate.release();
+            else
+                heldBack++;
+            nextSequence[member] = expected;
+            return;
+        }
+        group.deliver(msg);
+        expected++;
+        TreeMap<Long, Message<E>> waiting = outOfOrder.get(member);
+        if (waiting != null) {
+            Message<E> later;
+            while ((later = waiting.remove(expected)) != null) {
+                group.deliver(later);
+                later.release();
+                heldBack--;
+                expected++;
+            }
+            if (waiting.isEmpty())
+                outOfOrder.remove(member);
+        }
+        nextSequence[member] = expected;
+    }
+
+    public void stop() {
+    }
+
+    public int heldBack() {
+        return heldBack;
+    }
+
+    /**
+     * One per member, as the messages of different members are delivered
+     * independently. The first message seen from a member sets where its
+     * sequence starts, so those of one member must keep their order.
+     */
+    public Object streamOf(Message<E> msg) {
+        if (msg.getType() != Message.Type.DATA)
+            return null;
+        return msg.getMember();
+    }
+}
@@ -0,0 +1,205 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the frames of a sending end, one frame or a whole batch of them
+ * at a time, when it pays off. The frames are compressed only if they are
+ * at least the minimum size, and only if they shrink by at least an
+ * eighth; frames which do not are sent as they are. After such a miss the
+ * next frames are not even tried, for a number of writes which doubles
+ * with each miss in a row, so a link carrying incompressible payloads,
+ * e.g., already compressed images, soon stops spending time on them.
+ *
+ * A compressed frame is written as the length of the rest of it or'ed
+ * with COMPRESSED, the length of the frames it holds, and those frames,
+ * each with its own length, deflated. PointToPointQueueReceiverEndNio
+ * reads both kinds of frames, so receivers need no configuration.
+ *
+ * Used by the thread of one sending end.
+ */
+public class FrameCompressor {
+
+	/**
+	 * Set in the length of a compressed frame.
+	 */
+	public static final int COMPRESSED = 1 << 31;
+
+	/*
+	 * A compressed frame may be at most this many eighths of the frames.
+	 */
+	private static final int MOST_EIGHTHS = 7;
+
+	/*
+	 * The most writes not tried after misses in a row.
+	 */
+	private static final int MOST_SKIPPED = 64;
+
+	/*
+	 * 0 if compression is off.
+	 */
+	private volatile int minBytes;
+
+	/*
+	 * Made on first use, as each holds native memory.
+	 */
+	private Deflater deflater;
+
+	/*
+	 * The frames, when they have to be copied out of ByteBuffers.
+	 */
+	private byte[] input = new byte[0];
+
+	/*
+	 * The compressed frame.
+	 */
+	private byte[] output = new byte[0];
+	private int outputLength;
+
+	/*
+	 * Writes left before the next try, and how many to skip after a miss.
+	 */
+	private int skipped, toSkip = 1;
+
+	private final LongAdder framesCompressed = new LongAdder();
+	private final LongAdder framesNotCompressed = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	private final Histogram compressTime = new Histogram();
+
+	/**
+	 *
+	 * @param minBytes Compress frames, or batches of frames, of at least
+	 *                 this many bytes; 0 to turn compression off.
+	 */
+	public void setMinBytes(int minBytes) {
+		if (minBytes < 0) {
+			throw new IllegalArgumentException("Bad minimum size " + minBytes);
+		}
+		this.minBytes = minBytes;
+	}
+
+	public boolean isOn() {
+		return minBytes > 0;
+	}
+
+	/**
+	 * Names the counters in metrics: framesCompressed and
+	 * framesNotCompressed, counting writes tried or not; bytesBeforeCompression
+	 * and bytesAfterCompression of the compressed ones, and the
+	 * compressedPercent between them; and the compressTime histogram.
+	 *
+	 * @param metrics Where to add the counters.
+	 * @param prefix Put in front of each name, e.g. "link.3.".
+	 */
+	public void setMetrics(Metrics metrics, String prefix) {
+		metrics.add(prefix + "framesCompressed", framesCompressed);
+		metrics.add(prefix + "framesNotCompressed", framesNotCompressed);
+		metrics.add(prefix + "bytesBeforeCompression", bytesBeforeCompression);
+		metrics.add(prefix + "bytesAfterCompression", bytesAfterCompression);
+		metrics.add(prefix + "compressedPercent", new Metrics.Gauge() {
+				public long value() {
+					long before = bytesBeforeCompression.sum();
+					return before == 0 ? 100 : 100 * bytesAfterCompression.sum() / before;
+				}
+			});
+		metrics.add(prefix + "compressTime", compressTime);
+	}
+
+	/**
+	 * Compresses frames lying one after the other, if it pays off.
+	 *
+	 * @return Whether they were; then output() holds the compressed frame.
+	 */
+	public boolean compress(byte[] frames, int offset, int length) {
+		return shouldTry(length) && deflate(frames, offset, length);
+	}
+
+	/**
+	 * Compresses the frames in the first count parts, if it pays off.
+	 * The positions of the parts are left as they are.
+	 *
+	 * @param length The bytes remaining in the parts together.
+	 * @return Whether they were; then output() holds the compressed frame.
+	 */
+	public boolean compress(ByteBuffer[] parts, int count, int length) {
+		if (!shouldTry(length)) {
+			return false;
+		}
+		if (input.length < length) {
+			input = new byte[length];
+		}
+		int copied = 0;
+		for (int i = 0; i < count; i++) {
+			int remaining = parts[i].remaining();
+			parts[i].duplicate().get(input, copied, remaining);
+			copied += remaining;
+		}
+		return deflate(input, 0, length);
+	}
+
+	/**
+	 *
+	 * @return The compressed frame, from 0 to outputLength().
+	 */
+	public byte[] output() {
+		return output;
+	}
+
+	public int outputLength() {
+		return outputLength;
+	}
+
+	private boolean shouldTry(int length) {
+		int min = minBytes;
+		if (min == 0) {
+			return false;
+		}
+		if (length < min || skipped > 0) {
+			if (length >= min) {
+				skipped--;
+			}
+			framesNotCompressed.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deflates into output after the two lengths, giving up when the
+	 * result would be too large to pay off.
+	 */
+	private boolean deflate(byte[] frames, int offset, int length) {
+		long start = System.nanoTime();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		int most = 8 + (int)((long)length * MOST_EIGHTHS / 8);
+		if (output.length < most) {
+			output = new byte[most];
+		}
+		deflater.reset();
+		deflater.setInput(frames, offset, length);
+		deflater.finish();
+		int written = 8;
+		while (!deflater.finished() && written < most) {
+			written += deflater.deflate(output, written, most - written);
+		}
+		compressTime.recordSince(start);
+		if (!deflater.finished()) {
+			skipped = toSkip;
+			toSkip = Math.min(2 * toSkip, MOST_SKIPPED);
+			framesNotCompressed.increment();
+			return false;
+		}
+		toSkip = 1;
+		ByteBuffer lengths = ByteBuffer.wrap(output);
+		lengths.putInt(0, (written - 4) | COMPRESSED);
+		lengths.putInt(4, length);
+		outputLength = written;
+		framesCompressed.increment();
+		bytesBeforeCompression.add(length);
+		bytesAfterCompression.add(written);
+		return true;
+	}
+}
@@ -0,0 +1,41 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * A codec whose encoding may end in a body of bytes which already sits in
+ * a buffer, such as a Payload. The sending end writes the head and then
+ * the body straight from its buffer, see PointToPointQueueSenderEndGathering,
+ * and the receiving end lets the codec take the body from the frame it
+ * read, see PointToPointQueueReceiverEndNio. The frames are the same as
+ * those of encode().
+ *
+ */
+public interface GatheringCodec<E> extends Codec<E> {
+
+	/**
+	 * Writes the object as encode() does, except for the body at the end.
+	 *
+	 * @param object The object to write.
+	 * @param out The stream to write the head to.
+	 * @return A view of the body, to be written after the head, or null if
+	 *         there is none. Valid until the object is released.
+	 * @throws IOException if the object cannot be written.
+	 */
+	public ByteBuffer encodeHead(E object, DataOutputStream out) throws IOException;
+
+	/**
+	 * Reads an object written by encode() from a frame in a buffer.
+	 *
+	 * @param in A stream over the frame, from which the head is read.
+	 * @param frame The frame, from position to limit. The body is taken
+	 *              from its end, the position may be moved. Only valid
+	 *              during the call, so the body is copied if it is kept.
+	 * @return The object read.
+	 * @throws IOException if the bytes are not a valid encoding.
+	 */
+	public E decode(DataInputStream in, ByteBuffer frame) throws IOException;
+
+}
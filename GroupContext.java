@@ -0,0 +1,51 @@
+import java.io.Serializable;
+
+/**
+ * What an OrderingEngine may do with the peer group it orders messages
+ * for. Implemented by MulticastQueueImpl, which owns the transports.
+ */
+public interface GroupContext<E extends Serializable> {
+
+    /**
+     * @return The member ID of this peer.
+     */
+    public int getMemberId();
+
+    /**
+     * @return The current members of the group.
+     */
+    public Membership getMembers();
+
+    /**
+     * Passes a message on to the next peer on the ring.
+     */
+    public void forward(Message<E> msg);
+
+    /**
+     * Passes a message from the member which put it on towards all
+     * members: to the next peer on the ring, or along the Dissemination
+     * set on the queue. Only for messages which need not come back to
+     * their member.
+     */
+    public void disseminate(Message<E> msg);
+
+    /**
+     * Sends a message directly to a member, over a connection kept open
+     * for later messages to the same member.
+     */
+    public void sendTo(int member, Message<E> msg);
+
+    /**
+     * Tells the queue that a message put at this peer has got to all
+     * members, so it no longer counts against the window of setFlowControl().
+     * Called once for each message put at this peer.
+     */
+    public void completed(Message<E> msg);
+
+    /**
+     * Hands the payload of a message to the application, which gets it
+     * from poll().
+     */
+    public void deliver(Message<E> msg);
+
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class HandoffExample {
+
+	/**
+	 * Measures the handoff of objects from producer threads to one consumer
+	 * thread, as between put() and the thread pushing objects in a sending
+	 * end, or between the readers and poll() in a receiving end. Compares the
+	 * ConcurrentLinkedQueue with wait/notify the ends used before with an
+	 * MpscRingBuffer using each wait strategy. Reports the throughput when
+	 * the producers put as fast as they can, and the time from put until
+	 * taken when objects are put one at a time.
+	 * Call with "[objects [producers]]", defaults are 1000000 objects and
+	 * 2 producers.
+	 *
+	 * @param args the command line
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int objects = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int producers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		report("ConcurrentLinkedQueue", new MonitorHandoff(), objects, producers);
+		for (MpscRingBuffer.WaitStrategy strategy : MpscRingBuffer.WaitStrategy.values()) {
+			report("MpscRingBuffer " + strategy, new RingHandoff(strategy), objects, producers);
+		}
+	}
+
+	private static void report(String name, Handoff handoff, int objects, int producers) 
+			throws InterruptedException {
+		// The first round warms up the JIT and is thrown away
+		throughput(handoff, objects, producers);
+		double rate = throughput(handoff, objects, producers);
+		latencies(handoff, objects / 100);
+		long[] latencies = latencies(handoff, objects / 100);
+		Arrays.sort(latencies);
+		System.out.println(name + ": " + (long)rate + " objects/s, median " 
+				+ latencies[latencies.length / 2] + " ns, 99% " 
+				+ latencies[latencies.length * 99 / 100] + " ns");
+	}
+
+	/**
+	 * @return The number of objects taken per second.
+	 */
+	private static double throughput(final Handoff handoff, final int objects, int producers) 
+			throws InterruptedException {
+		final Long object = Long.valueOf(0);
+		Thread[] threads = new Thread[producers];
+		long start = System.nanoTime();
+		for (int p=0; p<producers; p++) {
+			final int share = objects / producers + (p < objects % producers ? 1 : 0);
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i=0; i<share; i++) {
+						handoff.put(object);
+					}
+				}
+			};
+			threads[p].start();
+		}
+		for (int i=0; i<objects; i++) {
+			handoff.take();
+		}
+		long time = System.nanoTime() - start;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return objects / (time / 1e9);
+	}
+
+	/**
+	 * Puts the current time one object at a time, with a pause in between so
+	 * the consumer goes idle, and records how long each took to be taken.
+	 */
+	private static long[] latencies(final Handoff handoff, final int objects) 
+			throws InterruptedException {
+		Thread producer = new Thread() {
+			public void run() {
+				for (int i=0; i<objects; i++) {
+					handoff.put(System.nanoTime());
+					long until = System.nanoTime() + 20000;
+					while (System.nanoTime() < until) {
+						Thread.yield();
+					}
+				}
+			}
+		};
+		producer.start();
+		long[] latencies = new long[objects];
+		for (int i=0; i<objects; i++) {
+			long sent = handoff.take();
+			latencies[i] = System.nanoTime() - sent;
+		}
+		producer.join();
+		return latencies;
+	}
+
+	private interface Handoff {
+		public void put(Long object);
+		public Long take();
+	}
+
+	/**
+	 * The handoff the sending and receiving ends used before MpscRingBuffer.
+	 */
+	private static class MonitorHandoff implements Handoff {
+		private final ConcurrentLinkedQueue<Long> pendingObjects = new ConcurrentLinkedQueue<Long>();
+
+		public void put(Long object) {
+			synchronized (pendingObjects) {
+				boolean wasEmpty = pendingObjects.isEmpty();
+				pendingObjects.add(object);
+				if (wasEmpty) {
+					pendingObjects.notify();
+				}
+			}
+		}
+
+		public Long take() {
+			synchronized (pendingObjects) {
+				while (pendingObjects.isEmpty()) {
+					try {
+						pendingObjects.wait();
+					} catch (InterruptedException e) {
+						// Try again
+					}
+				}
+				return pendingObjects.poll();
+			}
+		}
+	}
+
+	private static class RingHandoff implements Handoff {
+		private final MpscRingBuffer<Long> pendingObjects;
+
+		RingHandoff(MpscRingBuffer.WaitStrategy strategy) {
+			pendingObjects = new MpscRingBuffer<Long>(1 << 16, strategy);
+		}
+
+		public void put(Long object) {
+			pendingObjects.put(object);
+		}
+
+		public Long take() {
+			Long object;
+			while ((object = pendingObjects.poll()) == null) {
+				pendingObjects.await();
+			}
+			return object;
+		}
+	}
+
+}
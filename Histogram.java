@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in nanoseconds in buckets by powers of two: bucket i
+ * holds the values in [2^(i-1), 2^i), bucket 0 holds 0. The buckets are
+ * fixed, so record() allocates nothing and takes no lock, and the
+ * percentiles are exact to within a factor of two, which is plenty to tell
+ * a microsecond from a millisecond.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 *
+	 * @param nanos The duration to count. Negative values, from clocks of
+	 *              different peers, count as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		sum.add(nanos);
+		long seen;
+		while (nanos > (seen = max.get()) && !max.compareAndSet(seen, nanos)) {
+			// Lost to another thread, look again
+		}
+	}
+
+	/**
+	 * Records the time since start.
+	 *
+	 * @param start A System.nanoTime().
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 *
+	 * @param fraction Between 0 and 1, e.g. 0.99.
+	 * @return The upper bound of the bucket holding that fraction of the
+	 *         values, at most getMax(). 0 if nothing was recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long count = getCount();
+		long wanted = (long)Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= wanted && seen > 0) {
+				return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * Tells which key an object belongs to. Objects with equal keys are
+ * handled in order, see PollCallbackAdapter.
+ */
+public interface KeyFunction<E> {
+
+	public Object keyOf(E object);
+
+}
@@ -0,0 +1,41 @@
+import java.io.Serializable;
+
+/**
+ * Moves objects between ends in the same JVM without sockets. A receiving
+ * end registers under the port it is told to listen on, and a sending end
+ * hands objects to the receiving end registered under the port of its
+ * receiver address, whatever the host. Lets peers of a group run in one
+ * JVM at memory speed, e.g., to measure ordering engines without the noise
+ * of the network stack.
+ *
+ * With a codec, each object is encoded and decoded on the way, so the
+ * receiver gets a copy, as over a network. Without one, the receiver gets
+ * the very object which was put, so neither side may change it afterwards.
+ * MulticastQueueImpl keeps to this: it changes copies of the messages it
+ * receives, e.g. to add the hop of a traced message.
+ */
+public class LocalTransport<E extends Serializable> implements Transport<E> {
+	private final Codec<E> codec;
+
+	/**
+	 * Hands over the objects themselves.
+	 */
+	public LocalTransport() {
+		this(null);
+	}
+
+	/**
+	 * @param codec Copies the objects, null to hand over the objects.
+	 */
+	public LocalTransport(Codec<E> codec) {
+		this.codec = codec;
+	}
+
+	public PointToPointQueueSenderEnd<E> newSenderEnd() {
+		return new PointToPointQueueSenderEndLocal<E>(codec);
+	}
+
+	public PointToPointQueueReceiverEnd<E> newReceiverEnd() {
+		return new PointToPointQueueReceiverEndLocal<E>();
+	}
+}
@@ -0,0 +1,109 @@
+import java.net.InetSocketAddress;
+
+/**
+ * The members of a peer group, indexed by member ID. A member gets the
+ * smallest ID not handed out before when it joins, and keeps it until it
+ * leaves. IDs are not reused, so a message from a member which has left
+ * can never be mistaken for one from a newer member. Only the member with
+ * the lowest ID hands out IDs, see MulticastQueueImpl, so no two peers hand
+ * out the same one.
+ *
+ * Messages refer to members by ID only; the address of a member is only
+ * looked up here when a transport has to reach it. Reads take no lock and
+ * see a consistent snapshot, as the table is replaced on every change.
+ */
+public class Membership {
+    private volatile InetSocketAddress[] members;
+
+    public Membership() {
+        members = new InetSocketAddress[0];
+    }
+
+    /**
+     * Adds a member under the next free ID.
+     *
+     * @return The ID of the new member.
+     */
+    public synchronized int add(InetSocketAddress address) {
+        int id = members.length;
+        put(id, address);
+        return id;
+    }
+
+    /**
+     * Adds or replaces the member with the given ID.
+     */
+    public synchronized void put(int id, InetSocketAddress address) {
+        InetSocketAddress[] copy = new InetSocketAddress[
+            Math.max(members.length, id + 1)];
+        System.arraycopy(members, 0, copy, 0, members.length);
+        copy[id] = address;
+        members = copy;
+    }
+
+    /**
+     * Removes the member with the given ID. Its ID is not handed out again.
+     */
+    public synchronized void remove(int id) {
+        if (id < 0 || id >= members.length)
+            return;
+        InetSocketAddress[] copy = members.clone();
+        copy[id] = null;
+        members = copy;
+    }
+
+    /**
+     * Replaces the whole table, e.g., with the one received when joining.
+     *
+     * @param view The addresses by ID, null where no member has the ID.
+     */
+    public synchronized void set(InetSocketAddress[] view) {
+        members = view.clone();
+    }
+
+    /**
+     * @return The address of the member, null if there is no such member.
+     */
+    public InetSocketAddress get(int id) {
+        InetSocketAddress[] view = members;
+        return (id >= 0 && id < view.length) ? view[id] : null;
+    }
+
+    /**
+     * @return The lowest ID of a member, NO_MEMBER if there is none.
+     */
+    public int lowest() {
+        InetSocketAddress[] view = members;
+        for (int id = 0; id < view.length; id++) {
+            if (view[id] != null)
+                return id;
+        }
+        return Message.NO_MEMBER;
+    }
+
+    /**
+     * @return The addresses by ID, null where no member has the ID.
+     */
+    public InetSocketAddress[] toArray() {
+        return members.clone();
+    }
+
+    /**
+     * @return One more than the highest ID handed out so far.
+     */
+    public int capacity() {
+        return members.length;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder("Membership:[");
+        InetSocketAddress[] view = members;
+        for (int id = 0; id < view.length; id++) {
+            if (view[id] != null)
+                s.append(id).append('=').append(view[id]).append(',');
+        }
+        if (s.charAt(s.length() - 1) == ',')
+            s.setLength(s.length() - 1);
+        return s.append(']').toString();
+    }
+}
@@ -1,51 +1,150 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
 
-public class Message<E extends Serializable> implements Serializable, Comparable<Message<E>> {
-    public enum Type {GET_PREV, SET_PREV, SET_NEXT, DATA, ACK, GET_PREV_ANSWER};
+public class Message<E extends Serializable> implements Serializable, Comparable<Message<E>>, ReferenceCounted {
+    public enum Type {GET_PREV, SET_PREV, SET_NEXT, DATA, ACK, GET_PREV_ANSWER, JOINED, LEFT, ORDERED,
+	STATE, TAIL, SHARED_TAIL, CAUGHT_UP, STABLE};
 
-    private InetSocketAddress peer;
+    /**
+     * Used as member ID on messages which are not about a member.
+     */
+    public static final int NO_MEMBER = -1;
+
+    private int member;
     private Type type;
     private E data;
+    private transient volatile byte[] serializedData;
     private InetSocketAddress peerData;
+    private InetSocketAddress[] members;
+    private long[] acks;
     private long timestamp;
+    private long sequence;
+    private VectorClock clock;
+    private long putTime;
+    private long traceId;
+    private long[] hops;
+    private boolean resent;
 
-    public Message(InetSocketAddress peer, Type type) {
-	this(peer, type, null);
+    public Message(int member, Type type) {
+	this(member, type, null);
     }
 
 
 
-    public Message(InetSocketAddress peer, Type type, InetSocketAddress peerData) {
-	this(peer, type, peerData, null);
+    public Message(int member, Type type, InetSocketAddress peerData) {
+	this(member, type, peerData, null);
     }
 
-    public Message(InetSocketAddress peer, Type type, InetSocketAddress peerData, E data) {
-	this.peer = peer;
+    public Message(int member, Type type, InetSocketAddress peerData, E data) {
+	this.member = member;
 	this.type = type;
 	this.peerData = peerData;
 	this.data = data;
 	timestamp = 0;
     }
 
-    public InetSocketAddress getPeer() {
-	return peer;
+    /**
+     * The member ID this message is about. For DATA, ACK and ORDERED it
+     * is the member which put the message; for GET_PREV_ANSWER it is the ID
+     * given to the joining peer; for JOINED and LEFT it is the member
+     * joining or leaving; for SET_NEXT it is the joining peer, which asks
+     * for the state if the sequence number is not zero, see StateTransfer,
+     * or NO_MEMBER when a peer leaves; for STATE it is the peer sending
+     * the state; for STABLE the peer whose probe it is, see
+     * RetransmitBuffer. TAIL and SHARED_TAIL are copies of delivered DATA
+     * or ORDERED messages and keep their member.
+     */
+    public int getMember() {
+	return member;
     }
 
     public Type getType() {
 	return type;
     }
 
+    /**
+     * The payload. If the message arrived with it serialized, it is
+     * deserialized here, on first use.
+     *
+     * @throws RuntimeException if the payload cannot be deserialized.
+     */
     public E getData() {
+	if (data == null && serializedData != null) {
+	    try {
+		data = MessageCodec.<E>deserialize(serializedData);
+	    } catch (IOException e) {
+		throw new RuntimeException("Cannot deserialize payload: " + e.getMessage());
+	    }
+	}
 	return data;
     }
 
+    /**
+     * The payload as serialized by MessageCodec, or null. Kept from the
+     * frame the message arrived in, or from the first time it was sent,
+     * so the message is passed on without serializing the payload again.
+     * Java serialization leaves it out and writes the payload itself, see
+     * writeObject().
+     */
+    byte[] getSerializedData() {
+	return serializedData;
+    }
+
+    void setSerializedData(byte[] serializedData) {
+	this.serializedData = serializedData;
+    }
+
+    /**
+     * Deserializes the payload first if the message only has it
+     * serialized, so the stream carries it once, as the data.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+	if (data == null && serializedData != null)
+	    data = MessageCodec.<E>deserialize(serializedData);
+	out.defaultWriteObject();
+    }
+
+    /**
+     * Gives this message the payload of another, without deserializing it.
+     */
+    public void setDataOf(Message<E> msg) {
+	data = msg.data;
+	serializedData = msg.serializedData;
+    }
+
     public InetSocketAddress getPeerData() {
 	return peerData;
     }
 
+    /**
+     * The addresses of the group members by ID, sent to a joining peer
+     * with GET_PREV_ANSWER. Null on all other messages.
+     */
+    public InetSocketAddress[] getMembers() {
+	return members;
+    }
+
+    public void setMembers(InetSocketAddress[] members) {
+	this.members = members;
+    }
+
+    /**
+     * Timestamps of earlier DATA messages from the same member which have
+     * been around the whole ring, in increasing order. Lets a DATA message,
+     * or an ACK, acknowledge several messages at once. Null if none.
+     */
+    public long[] getAcks() {
+	return acks;
+    }
+
+    public void setAcks(long[] acks) {
+	this.acks = acks;
+    }
+
     public String toString() {
-	return "Message:[peer=" + peer + ",type=" + type +",data=" + data + ",peerData=" + peerData +",timestamp="+timestamp+"]";
+	return "Message:[member=" + member + ",type=" + type +",data=" + (data == null && serializedData != null ? serializedData.length + " bytes" : data) + ",peerData=" + peerData +",timestamp="+timestamp+",sequence="+sequence+"]";
     }
 
     public void setTimestamp(long val) {
@@ -56,22 +155,149 @@ public class Message<E extends Serializable> implements Serializable, Comparable
 	return timestamp;
     }
 
+    /**
+     * The number of DATA messages the member put before this one. Used
+     * by the FIFO and NONE delivery guarantees instead of the timestamp.
+     * On ORDERED it is the place in the total order given by the
+     * sequencer.
+     */
+    public void setSequence(long val) {
+	sequence = val;
+    }
+
+    public long getSequence() {
+	return sequence;
+    }
+
+    /**
+     * The messages the member had delivered when it put this one, used by
+     * the CAUSAL delivery guarantee. The entry of the member itself is
+     * given by the sequence number instead. Null for other guarantees.
+     */
+    public VectorClock getClock() {
+	return clock;
+    }
+
+    public void setClock(VectorClock clock) {
+	this.clock = clock;
+    }
+
+    /**
+     * When the DATA message was put, from Metrics.wallClockMicros() at its
+     * member, for measuring the latency to its delivery at each peer. Kept
+     * on ORDERED. 0 if not known.
+     */
+    public long getPutTime() {
+	return putTime;
+    }
+
+    public void setPutTime(long putTime) {
+	this.putTime = putTime;
+    }
+
+    /**
+     * Non-zero if the message is traced, see Tracer. An ACK, or ORDERED,
+     * has the trace ID of its DATA message.
+     */
+    public long getTraceId() {
+	return traceId;
+    }
+
+    public void setTraceId(long traceId) {
+	this.traceId = traceId;
+    }
+
+    /**
+     * The hops a traced message has made, as pairs of a time and the member
+     * shifted left by 8 bits, or'ed with a Tracer.Event ordinal. Built by
+     * Tracer.append(). Null if not traced.
+     */
+    public long[] getHops() {
+	return hops;
+    }
+
+    public void setHops(long[] hops) {
+	this.hops = hops;
+    }
+
+    /**
+     * Retains the payload if it is ReferenceCounted, e.g. a Payload.
+     */
+    public void retain() {
+	if (data instanceof ReferenceCounted)
+	    ((ReferenceCounted)data).retain();
+    }
+
+    /**
+     * Releases the payload if it is ReferenceCounted.
+     */
+    public void release() {
+	if (data instanceof ReferenceCounted)
+	    ((ReferenceCounted)data).release();
+    }
+
+    /**
+     * Whether this is a copy sent again after a peer left, which the
+     * receiver drops if it has already had the message, see
+     * RetransmitBuffer.resend().
+     */
+    public boolean isResent() {
+	return resent;
+    }
+
+    /**
+     * A copy of this message marked as resent, sharing the payload, so the
+     * message itself is not changed while others hold it.
+     */
+    public Message<E> makeResent() {
+	Message<E> msg = copy();
+	msg.resent = true;
+	return msg;
+    }
+
+    /**
+     * A copy of this message with other hops, sharing the payload, so the
+     * message itself is not changed while others hold it, e.g. the other
+     * peers a LocalTransport without a codec handed it to.
+     */
+    public Message<E> makeHopped(long[] hops) {
+	Message<E> msg = copy();
+	msg.hops = hops;
+	return msg;
+    }
+
+    private Message<E> copy() {
+	Message<E> msg = new Message<E>(member, type, peerData);
+	msg.setDataOf(this);
+	msg.members = members;
+	msg.acks = acks;
+	msg.timestamp = timestamp;
+	msg.sequence = sequence;
+	msg.clock = clock;
+	msg.putTime = putTime;
+	msg.traceId = traceId;
+	msg.hops = hops;
+	msg.resent = resent;
+	return msg;
+    }
+
     public Message<E> makeAck() {
-        Message<E> msg = new Message<E>(peer, Type.ACK);
+        Message<E> msg = new Message<E>(member, Type.ACK);
         msg.setTimestamp(timestamp);
+        msg.setTraceId(traceId);
         return msg;
     }
 
     public int compareTo(Message<E> msg) {
 	long res = timestamp - msg.getTimestamp();
 	if (res == 0)
-	    res = peer.toString().compareTo(msg.getPeer().toString());
+	    res = member - msg.getMember();
 	if (res == 0)
 	    res = (type == Type.ACK) ? -1 : 1;
 	return (res > 0) ? 1 : ((res < 0) ? -1 : 0);
     }
 
     public boolean hasAck(Message<E> msg) {
-	return timestamp == msg.getTimestamp() && peer.equals(msg.getPeer());
+	return timestamp == msg.getTimestamp() && member == msg.getMember();
     }
 }
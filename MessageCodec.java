@@ -0,0 +1,414 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of the Message envelope, used instead of Java's
+ * serialization of the whole Message. A message is written as
+ *
+ *   type       one byte, the ordinal of the Message.Type
+ *   flags      unsigned varint telling which of the optional fields
+ *              follow
+ *   member     unsigned varint, the member ID plus one
+ *   timestamp  unsigned varint
+ *   sequence   unsigned varint, if HAS_SEQUENCE
+ *   peerData   peer reference, see writePeer(), if HAS_PEER_DATA
+ *   members    unsigned varint count, then a peer reference per member
+ *              ID, if HAS_MEMBERS
+ *   clock      unsigned varint count of non-zero entries, then for each
+ *              the member ID as difference from the previous one and
+ *              the entry, both unsigned varints, if HAS_CLOCK. The
+ *              entry of the member sending the message is left out.
+ *   acks       unsigned varint count, then the acknowledged timestamps as
+ *              unsigned varint differences from timestamp, if HAS_ACKS
+ *   data       unsigned varint length, then the serialized payload,
+ *              if HAS_DATA, or just the length if HAS_RAW_DATA
+ *   putTime    unsigned varint, microseconds since the epoch, if
+ *              HAS_PUT_TIME
+ *   trace      the trace ID as eight bytes, then unsigned varint count
+ *              of hops, then for each the member ID plus one as unsigned
+ *              varint, the Tracer.Event as one byte, and the time as
+ *              signed varint difference from the previous hop, if
+ *              HAS_TRACE
+ *   raw data   the bytes of a Payload, if HAS_RAW_DATA
+ *
+ * A resent message, see Message.isResent(), only sets the RESENT flag.
+ *
+ * Only the payload goes through Java's serialization, and peers are named
+ * by member ID, so an ACK takes four or five bytes. The serialized payload
+ * is not deserialized by decode(); it stays on the message, is written
+ * again as it is when the message is passed on, and is only deserialized
+ * when the application asks for it, see Message.getData(). A Payload is not
+ * serialized at all; its bytes end the frame, so encodeHead() can leave
+ * them where they are. The codec keeps no state and may be shared.
+ */
+public class MessageCodec<E extends Serializable>
+        implements GatheringCodec<Message<E>> {
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+    private static final int EVENTS = Tracer.Event.values().length;
+
+    /* Flags telling which optional fields are present. */
+    private static final int HAS_PEER_DATA = 1;
+    private static final int HAS_MEMBERS = 2;
+    private static final int HAS_DATA = 4;
+    private static final int HAS_ACKS = 8;
+    private static final int HAS_SEQUENCE = 16;
+    private static final int HAS_CLOCK = 32;
+    private static final int HAS_PUT_TIME = 64;
+    private static final int HAS_TRACE = 128;
+    private static final int HAS_RAW_DATA = 256;
+    private static final int RESENT = 512;
+
+    /* Peer reference kinds. */
+    private static final int NO_PEER = 0;
+    private static final int IPV4_PEER = 4;
+    private static final int IPV6_PEER = 16;
+    private static final int NAMED_PEER = 1;
+
+    public void encode(Message<E> msg, DataOutputStream out)
+            throws IOException {
+        if (encodeHead(msg, out) != null)
+            ((Payload)msg.getData()).writeTo(out);
+    }
+
+    public ByteBuffer encodeHead(Message<E> msg, DataOutputStream out)
+            throws IOException {
+        int flags = 0;
+        if (msg.getPeerData() != null)
+            flags |= HAS_PEER_DATA;
+        if (msg.getMembers() != null)
+            flags |= HAS_MEMBERS;
+        if (msg.getSerializedData() != null)
+            flags |= HAS_DATA;
+        else if (msg.getData() instanceof Payload)
+            flags |= HAS_RAW_DATA;
+        else if (msg.getData() != null)
+            flags |= HAS_DATA;
+        if (msg.getAcks() != null)
+            flags |= HAS_ACKS;
+        if (msg.getSequence() != 0)
+            flags |= HAS_SEQUENCE;
+        if (msg.getClock() != null)
+            flags |= HAS_CLOCK;
+        if (msg.getPutTime() != 0)
+            flags |= HAS_PUT_TIME;
+        if (msg.getTraceId() != 0)
+            flags |= HAS_TRACE;
+        if (msg.isResent())
+            flags |= RESENT;
+        out.writeByte(msg.getType().ordinal());
+        writeVarLong(out, flags);
+        writeVarLong(out, msg.getMember() + 1);
+        writeVarLong(out, msg.getTimestamp());
+        if ((flags & HAS_SEQUENCE) != 0)
+            writeVarLong(out, msg.getSequence());
+        if ((flags & HAS_PEER_DATA) != 0)
+            writePeer(out, msg.getPeerData());
+        if ((flags & HAS_MEMBERS) != 0) {
+            InetSocketAddress[] members = msg.getMembers();
+            writeVarLong(out, members.length);
+            for (InetSocketAddress member : members)
+                writePeer(out, member);
+        }
+        if ((flags & HAS_CLOCK) != 0)
+            writeClock(out, msg.getClock(), msg.getMember());
+        if ((flags & HAS_ACKS) != 0) {
+            long[] acks = msg.getAcks();
+            writeVarLong(out, acks.length);
+            for (long ack : acks)
+                writeVarLong(out, msg.getTimestamp() - ack);
+        }
+        if ((flags & HAS_DATA) != 0)
+            writePayload(out, msg);
+        if ((flags & HAS_RAW_DATA) != 0)
+            writeVarLong(out, ((Payload)msg.getData()).length());
+        if ((flags & HAS_PUT_TIME) != 0)
+            writeVarLong(out, msg.getPutTime());
+        if ((flags & HAS_TRACE) != 0) {
+            out.writeLong(msg.getTraceId());
+            writeHops(out, msg.getHops());
+        }
+        if ((flags & HAS_RAW_DATA) != 0)
+            return ((Payload)msg.getData()).content();
+        return null;
+    }
+
+    public Message<E> decode(DataInputStream in) throws IOException {
+        return decode(in, null);
+    }
+
+    public Message<E> decode(DataInputStream in, ByteBuffer frame)
+            throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= TYPES.length)
+            throw new IOException("Unknown message type " + type);
+        int flags = (int)readVarLong(in);
+        int member = (int)readVarLong(in) - 1;
+        long timestamp = readVarLong(in);
+        long sequence = 0;
+        if ((flags & HAS_SEQUENCE) != 0)
+            sequence = readVarLong(in);
+        InetSocketAddress peerData = null;
+        if ((flags & HAS_PEER_DATA) != 0)
+            peerData = readPeer(in);
+        InetSocketAddress[] members = null;
+        if ((flags & HAS_MEMBERS) != 0) {
+            members = new InetSocketAddress[(int)readVarLong(in)];
+            for (int id = 0; id < members.length; id++)
+                members[id] = readPeer(in);
+        }
+        VectorClock clock = null;
+        if ((flags & HAS_CLOCK) != 0)
+            clock = readClock(in);
+        long[] acks = null;
+        if ((flags & HAS_ACKS) != 0) {
+            acks = new long[(int)readVarLong(in)];
+            for (int i = 0; i < acks.length; i++)
+                acks[i] = timestamp - readVarLong(in);
+        }
+        byte[] serializedData = null;
+        if ((flags & HAS_DATA) != 0)
+            serializedData = readPayload(in);
+        E data = null;
+        int rawLength = 0;
+        if ((flags & HAS_RAW_DATA) != 0)
+            rawLength = (int)readVarLong(in);
+        long putTime = 0;
+        if ((flags & HAS_PUT_TIME) != 0)
+            putTime = readVarLong(in);
+        long traceId = 0;
+        long[] hops = null;
+        if ((flags & HAS_TRACE) != 0) {
+            traceId = in.readLong();
+            hops = readHops(in);
+        }
+        if ((flags & HAS_RAW_DATA) != 0)
+            data = asData(readRawData(in, frame, rawLength));
+        Message<E> msg;
+        if ((flags & RESENT) != 0)
+            msg = new Message<E>(member, TYPES[type], peerData, data).makeResent();
+        else
+            msg = new Message<E>(member, TYPES[type], peerData, data);
+        msg.setSerializedData(serializedData);
+        msg.setTimestamp(timestamp);
+        msg.setSequence(sequence);
+        msg.setClock(clock);
+        msg.setMembers(members);
+        msg.setAcks(acks);
+        msg.setPutTime(putTime);
+        msg.setTraceId(traceId);
+        msg.setHops(hops);
+        return msg;
+    }
+
+    /**
+     * Writes a peer as one byte giving the kind of reference, followed by
+     * the raw IP address and the port as two bytes. Unresolved addresses
+     * are written by host name.
+     */
+    static void writePeer(DataOutputStream out, InetSocketAddress peer)
+            throws IOException {
+        if (peer == null) {
+            out.writeByte(NO_PEER);
+            return;
+        }
+        InetAddress address = peer.getAddress();
+        if (address == null) {
+            out.writeByte(NAMED_PEER);
+            out.writeUTF(peer.getHostName());
+        } else {
+            byte[] raw = address.getAddress();
+            out.writeByte(raw.length);
+            out.write(raw);
+        }
+        out.writeShort(peer.getPort());
+    }
+
+    static InetSocketAddress readPeer(DataInputStream in) throws IOException {
+        int kind = in.readUnsignedByte();
+        switch (kind) {
+            case NO_PEER:
+                return null;
+            case NAMED_PEER:
+                String host = in.readUTF();
+                return new InetSocketAddress(host, in.readUnsignedShort());
+            case IPV4_PEER:
+            case IPV6_PEER:
+                byte[] raw = new byte[kind];
+                in.readFully(raw);
+                return new InetSocketAddress(InetAddress.getByAddress(raw),
+                        in.readUnsignedShort());
+            default:
+                throw new IOException("Unknown peer reference " + kind);
+        }
+    }
+
+    /**
+     * Writes the non-zero entries of a clock, except the one of the given
+     * member, so the size grows with the number of members which have
+     * sent something, not with the size of the group.
+     */
+    static void writeClock(DataOutputStream out, VectorClock clock,
+            int except) throws IOException {
+        int count = 0;
+        for (int id = 0; id < clock.size(); id++) {
+            if (id != except && clock.get(id) != 0)
+                count++;
+        }
+        writeVarLong(out, count);
+        int previous = 0;
+        for (int id = 0; id < clock.size(); id++) {
+            if (id != except && clock.get(id) != 0) {
+                writeVarLong(out, id - previous);
+                writeVarLong(out, clock.get(id));
+                previous = id;
+            }
+        }
+    }
+
+    static VectorClock readClock(DataInputStream in) throws IOException {
+        VectorClock clock = new VectorClock();
+        int count = (int)readVarLong(in);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += (int)readVarLong(in);
+            clock.set(id, readVarLong(in));
+        }
+        return clock;
+    }
+
+    /**
+     * Reads the bytes of a Payload, from the end of the frame if there is
+     * one, else from the stream. The bytes are copied from the frame: it
+     * sits in the read buffer of a connection, which is reused for the
+     * frames after it, while the payload is held until the application
+     * and the retransmit buffer release it.
+     */
+    static Payload readRawData(DataInputStream in, ByteBuffer frame,
+            int length) throws IOException {
+        if (frame == null)
+            return Payload.readFrom(in, length);
+        if (length > frame.remaining())
+            throw new IOException("Payload longer than the frame");
+        frame.position(frame.limit() - length);
+        return Payload.copyOf(frame);
+    }
+
+    /**
+     * Raw data is only written for a Payload, so E is Payload here.
+     */
+    @SuppressWarnings("unchecked")
+    private E asData(Payload payload) {
+        return (E)payload;
+    }
+
+    static void writeHops(DataOutputStream out, long[] hops)
+            throws IOException {
+        if (hops == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, hops.length / 2);
+        long previous = 0;
+        for (int i = 0; i < hops.length; i += 2) {
+            writeVarLong(out, (hops[i + 1] >> 8) + 1);
+            out.writeByte((int)(hops[i + 1] & 0xFF));
+            long delta = hops[i] - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = hops[i];
+        }
+    }
+
+    static long[] readHops(DataInputStream in) throws IOException {
+        int count = (int)readVarLong(in);
+        if (count == 0)
+            return null;
+        long[] hops = new long[2 * count];
+        long previous = 0;
+        for (int i = 0; i < hops.length; i += 2) {
+            long member = readVarLong(in) - 1;
+            int event = in.readUnsignedByte();
+            if (event >= EVENTS)
+                throw new IOException("Unknown trace event " + event);
+            hops[i + 1] = (member << 8) | event;
+            long zigzag = readVarLong(in);
+            hops[i] = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previous = hops[i];
+        }
+        return hops;
+    }
+
+    /**
+     * Writes the serialized payload of a message, serializing it first if
+     * the message does not have it yet. The bytes are kept on the message,
+     * so sending it on more links, or passing it on at another peer,
+     * copies them instead of serializing again.
+     */
+    static void writePayload(DataOutputStream out, Message<?> msg)
+            throws IOException {
+        byte[] bytes = msg.getSerializedData();
+        if (bytes == null) {
+            bytes = serialize(msg.getData());
+            msg.setSerializedData(bytes);
+        }
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a serialized payload without deserializing it, see
+     * Message.getData().
+     */
+    static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = (int)readVarLong(in);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static byte[] serialize(Serializable data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream forSerializing = new ObjectOutputStream(bytes);
+        forSerializing.writeObject(data);
+        forSerializing.close();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T deserialize(byte[] bytes) throws IOException {
+        ObjectInputStream forDeserializing =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (T)forDeserializing.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The peer sent object of unknown type: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a non-negative long using seven bits per byte, lowest bits
+     * first. The high bit of a byte is set if more bytes follow.
+     */
+    static void writeVarLong(DataOutputStream out, long value)
+            throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
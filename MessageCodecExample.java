@@ -0,0 +1,77 @@
+import java.io.*;
+
+
+public class MessageCodecExample {
+
+	/**
+	 * Compares the size of a Message and the time to encode and decode it
+	 * using Java's serialization (SerializationCodec) and the compact
+	 * envelope (MessageCodec), for a small DATA message and an ACK.
+	 * Call with "[iterations]", default is 100000.
+	 *
+	 * @param args the command line
+	 */
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Message<String> data = new Message<String>(3, Message.Type.DATA, null, "Haxxor1: hello ring");
+		data.setTimestamp(4711);
+		Message<String> ack = data.makeAck();
+
+		Codec<Message<String>> serialization = new SerializationCodec<Message<String>>();
+		Codec<Message<String>> compact = new MessageCodec<String>();
+		compare("DATA", data, serialization, compact, iterations);
+		compare("ACK", ack, serialization, compact, iterations);
+	}
+
+	private static void compare(String name, Message<String> msg, Codec<Message<String>> serialization,
+			Codec<Message<String>> compact, int iterations) throws IOException {
+		System.out.println(name + ":");
+		report("  serialization", msg, serialization, iterations);
+		report("  compact      ", msg, compact, iterations);
+	}
+
+	/**
+	 * Encodes and decodes the message the given number of times with the codec,
+	 * after a warm-up round, and prints the size and the average times. Each
+	 * iteration encodes a fresh copy of the message, so MessageCodec serializes
+	 * the payload every time instead of reusing the bytes it kept on the
+	 * message, and each decode gets the payload out of the copy it returns.
+	 */
+	private static void report(String name, Message<String> msg, Codec<Message<String>> codec,
+			int iterations) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		codec.encode(msg, out);
+		out.flush();
+		byte[] frame = bytes.toByteArray();
+
+		long encode = 0, decode = 0;
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i=0; i<iterations; i++) {
+				bytes.reset();
+				codec.encode(fresh(msg), out);
+				out.flush();
+			}
+			encode = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i=0; i<iterations; i++) {
+				codec.decode(new DataInputStream(new ByteArrayInputStream(frame))).getData();
+			}
+			decode = System.nanoTime() - start;
+		}
+		System.out.println(name + ": " + frame.length + " bytes, encode " + encode / iterations
+				+ " ns, decode " + decode / iterations + " ns");
+	}
+
+	/**
+	 * A copy of the message which does not have its payload serialized yet.
+	 */
+	private static Message<String> fresh(Message<String> msg) {
+		Message<String> copy = new Message<String>(msg.getMember(), msg.getType(), null, msg.getData());
+		copy.setTimestamp(msg.getTimestamp());
+		copy.setAcks(msg.getAcks());
+		return copy;
+	}
+
+}
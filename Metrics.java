@@ -0,0 +1,193 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Named counters, histograms and gauges of a peer, readable through JMX
+ * as attributes of one MBean, and by a MetricsReporter at a fixed interval.
+ * The counters and histograms belong to the parts of the peer which update
+ * them, and are always on; this only names them. Reading happens off the
+ * hot path, so it may take its time.
+ */
+public class Metrics implements DynamicMBean {
+
+	/**
+	 * A value read when the metrics are, such as the length of a queue.
+	 */
+	public interface Gauge {
+		public long value();
+	}
+
+	/*
+	 * What System.nanoTime() is off from the wall clock, taken once, so
+	 * wallClockMicros() has the resolution of nanoTime().
+	 */
+	private static final long NANO_OFFSET = System.currentTimeMillis() * 1000000 - System.nanoTime();
+
+	private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+	private ObjectName objectName;
+	private Timer reportTimer;
+
+	/**
+	 * A wall clock comparable between peers whose clocks are synchronized,
+	 * used for latencies from one peer to another.
+	 *
+	 * @return Microseconds since the epoch.
+	 */
+	public static long wallClockMicros() {
+		return (NANO_OFFSET + System.nanoTime()) / 1000;
+	}
+
+	public void add(String name, LongAdder counter) {
+		metrics.put(name, counter);
+	}
+
+	public void add(String name, Histogram histogram) {
+		metrics.put(name, histogram);
+	}
+
+	public void add(String name, Gauge gauge) {
+		metrics.put(name, gauge);
+	}
+
+	/**
+	 * Forgets all metrics whose names start with prefix, e.g. those of a
+	 * connection which has been closed.
+	 */
+	public void removeAll(String prefix) {
+		metrics.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+	}
+
+	/**
+	 * Reads all metrics. A histogram h gives h.count, h.mean, h.p50, h.p99
+	 * and h.max, in nanoseconds.
+	 *
+	 * @return The values by name.
+	 */
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+			String name = metric.getKey();
+			Object value = metric.getValue();
+			if (value instanceof LongAdder) {
+				values.put(name, ((LongAdder)value).sum());
+			} else if (value instanceof Gauge) {
+				values.put(name, ((Gauge)value).value());
+			} else {
+				Histogram histogram = (Histogram)value;
+				values.put(name + ".count", histogram.getCount());
+				values.put(name + ".mean", histogram.getMean());
+				values.put(name + ".p50", histogram.getPercentile(0.5));
+				values.put(name + ".p99", histogram.getPercentile(0.99));
+				values.put(name + ".max", histogram.getMax());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBeanServer, replacing any
+	 * registered under the same name.
+	 *
+	 * @param name The ObjectName, e.g. "ddist:type=MulticastQueue,port=1337".
+	 */
+	public synchronized void register(String name) {
+		unregister();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			System.err.println("Could not register metrics as " + name);
+			System.err.println(e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// Already gone
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Hands a snapshot to the reporter every interval milliseconds, on a
+	 * thread of its own, until stopReporting().
+	 */
+	public synchronized void startReporting(final MetricsReporter reporter, long interval) {
+		stopReporting();
+		reportTimer = new Timer("metrics reporter", true);
+		reportTimer.schedule(new TimerTask() {
+				public void run() {
+					reporter.report(snapshot());
+				}
+			}, interval, interval);
+	}
+
+	public synchronized void stopReporting() {
+		if (reportTimer != null) {
+			reportTimer.cancel();
+			reportTimer = null;
+		}
+	}
+
+	/* DynamicMBean, each value of snapshot() is a read-only attribute. */
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Long> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+		throw new MBeanException(new UnsupportedOperationException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		SortedMap<String, Long> values = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (String name : values.keySet()) {
+			attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of a peer", attributes, null, null, null);
+	}
+}
@@ -0,0 +1,15 @@
+import java.util.SortedMap;
+
+/**
+ * Receives the values of Metrics at a fixed interval, see
+ * Metrics.startReporting(). Called on the thread of the reporting timer.
+ */
+public interface MetricsReporter {
+
+	/**
+	 *
+	 * @param values The values by name, as from Metrics.snapshot().
+	 */
+	public void report(SortedMap<String, Long> values);
+
+}
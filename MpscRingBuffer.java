@@ -0,0 +1,294 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A queue for handing objects from any number of producer threads to one
+ * consumer thread, without locks and without allocating per object while
+ * there is room. The slots are allocated up front. A producer claims a
+ * slot by advancing the tail with compare-and-set and then publishes its
+ * object in the slot; the consumer takes objects from the head as they are
+ * published.
+ *
+ * put() never waits, as the threads putting, e.g., the thread of a queue
+ * passing messages on around the ring, must not wait for each other: when
+ * the slots are full, objects go to an unbounded overflow, under a lock,
+ * and the consumer moves them into the slots in order as they free up.
+ * offer() instead fails when the slots are full.
+ *
+ * offer(), put(), size(), isEmpty() and wakeUp() may be called from any
+ * thread; poll(), peek() and await() only from one thread at a time. How
+ * an idle consumer waits is given by the WaitStrategy.
+ */
+public class MpscRingBuffer<E> {
+
+	/**
+	 * How the consumer waits for objects.
+	 * SPIN:  Checks again at once. Lowest latency, burns a core.
+	 * YIELD: Lets other threads run between checks.
+	 * PARK:  Spins briefly, then sleeps until woken by a producer.
+	 */
+	public enum WaitStrategy { SPIN, YIELD, PARK };
+
+	/*
+	 * How many times a PARK consumer checks before sleeping.
+	 */
+	private static final int SPINS_BEFORE_PARK = 100;
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+
+	/*
+	 * The next slot to claim. Only advanced by producers.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/*
+	 * The next slot to take. Only advanced by the consumer.
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/*
+	 * The consumer if it is parked, or about to park.
+	 */
+	private volatile Thread parkedConsumer;
+
+	/*
+	 * Set by wakeUp(). From then on await() returns at once.
+	 */
+	private volatile boolean wokenUp;
+
+	private volatile WaitStrategy waitStrategy;
+
+	/*
+	 * The objects put while the slots were full, and how many there are.
+	 * While there are any, objects are put behind them, so the objects of
+	 * a producer keep their order. Guarded by itself.
+	 */
+	private final ArrayDeque<E> overflow = new ArrayDeque<E>();
+	private volatile int spilled;
+
+	/**
+	 * @param capacity The number of slots, rounded up to a power of two.
+	 * @param waitStrategy How to wait.
+	 */
+	public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Bad capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.mask = size - 1;
+		setWaitStrategy(waitStrategy);
+	}
+
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		if (waitStrategy == null) {
+			throw new NullPointerException();
+		}
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Adds the object, unless the slots are full or objects wait in the 
+	 * overflow.
+	 * 
+	 * @return Whether the object was added.
+	 */
+	public boolean offer(E object) {
+		if (object == null) {
+			throw new NullPointerException();
+		}
+		return spilled == 0 && claim(object);
+	}
+
+	/**
+	 * Adds the object, to the overflow if the slots are full. Does not wait.
+	 */
+	public void put(E object) {
+		if (offer(object)) {
+			return;
+		}
+		synchronized (overflow) {
+			// The consumer may have emptied the overflow meanwhile
+			if (spilled == 0 && claim(object)) {
+				return;
+			}
+			overflow.add(object);
+			spilled = overflow.size();
+		}
+		Thread consumer = parkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Moves the objects in the overflow into the slots which are free.
+	 * Called by the consumer.
+	 */
+	private void refill() {
+		if (spilled == 0) {
+			return;
+		}
+		synchronized (overflow) {
+			E object;
+			while ((object = overflow.peek()) != null && claim(object)) {
+				overflow.poll();
+			}
+			spilled = overflow.size();
+		}
+	}
+
+	/**
+	 * Publishes the object in a free slot, if there is one.
+	 */
+	private boolean claim(E object) {
+		long claimed;
+		do {
+			claimed = tail.get();
+			if (claimed - head.get() > mask) {
+				return false;
+			}
+		} while (!tail.compareAndSet(claimed, claimed + 1));
+		slots.lazySet((int)claimed & mask, object);
+		Thread consumer = parkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the object at the head, if it has been published.
+	 * 
+	 * @return The object, null if there is none.
+	 */
+	public E poll() {
+		refill();
+		long taken = head.get();
+		int index = (int)taken & mask;
+		E object = slots.get(index);
+		if (object == null) {
+			return null;
+		}
+		slots.lazySet(index, null);
+		head.lazySet(taken + 1);
+		return object;
+	}
+
+	/**
+	 * @return The object at the head, null if there is none.
+	 */
+	public E peek() {
+		refill();
+		return slots.get((int)head.get() & mask);
+	}
+
+	/**
+	 * @param offset How many objects after the head to look, 0 for the head.
+	 * @return The object there, null if there is none, it is not
+	 *         published yet or it is still in the overflow.
+	 */
+	public E peek(int offset) {
+		refill();
+		if (offset >= tail.get() - head.get()) {
+			return null;
+		}
+		return slots.get((int)(head.get() + offset) & mask);
+	}
+
+	/**
+	 * @return Whether no slot is claimed and the overflow is empty. A 
+	 *         claimed object may not be published yet, so poll() can return 
+	 *         null even if this is false.
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail.get() && spilled == 0;
+	}
+
+	/**
+	 * @return The objects in the slots and in the overflow.
+	 */
+	public int size() {
+		return (int)(tail.get() - head.get()) + spilled;
+	}
+
+	/**
+	 * @return The number of slots.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Waits until the buffer is not empty or wakeUp() has been called. May 
+	 * return early, so callers check their condition and wait again.
+	 */
+	public void await() {
+		await(-1);
+	}
+
+	/**
+	 * As await(), but gives up after the given time.
+	 * 
+	 * @param timeoutNanos The longest time to wait, negative for no limit.
+	 */
+	public void await(long timeoutNanos) {
+		await(1, timeoutNanos);
+	}
+
+	/**
+	 * As await(), but waits until at least count slots are claimed, or the
+	 * given time has passed.
+	 * 
+	 * @param count How many objects to wait for.
+	 * @param timeoutNanos The longest time to wait, negative for no limit.
+	 */
+	public void await(int count, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		int spins = 0;
+		while (size() < count && !wokenUp) {
+			long left = deadline - System.nanoTime();
+			if (timeoutNanos >= 0 && left <= 0) {
+				return;
+			}
+			if (waitStrategy == WaitStrategy.SPIN) {
+				continue;
+			} else if (waitStrategy == WaitStrategy.YIELD 
+					|| spins++ < SPINS_BEFORE_PARK) {
+				Thread.yield();
+				continue;
+			}
+			parkedConsumer = Thread.currentThread();
+			// Check again, a producer may have missed that we are parking
+			if (size() < count && !wokenUp) {
+				if (timeoutNanos >= 0) {
+					LockSupport.parkNanos(this, left);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+			parkedConsumer = null;
+			if (Thread.interrupted()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes a consumer waiting in await() return, and await() return at once 
+	 * from now on. Used on shutdown.
+	 */
+	public void wakeUp() {
+		wokenUp = true;
+		Thread consumer = parkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -56,11 +57,33 @@ public interface MulticastQueue<E extends Serializable> extends Runnable, Pollab
 	 * it returns immediately. In particular, it returns before the object 
 	 * is delivered to any peer. The manager of the queue should take 
 	 * care of moving the object to all peers in the peer group.
+	 * If the queue limits how many of its objects may be on their way, and
+	 * that many are, it blocks until one of them has arrived.
 	 * 
 	 * @param object The message to be added to the queue.
 	 */
 	public void put(E object);
 
+	/**
+	 * As put(), but returns at once instead of blocking when too many objects
+	 * put at this peer are on their way.
+	 * 
+	 * @param object The message to be added to the queue.
+	 * @return Whether the object was added to the queue.
+	 */
+	public boolean offer(E object);
+
+	/**
+	 * As put(), but gives up if the object cannot be added within the timeout.
+	 * 
+	 * @param object The message to be added to the queue.
+	 * @param timeout How long to wait, in units of unit.
+	 * @param unit The unit of timeout.
+	 * @return Whether the object was added to the queue.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean offer(E object, long timeout, TimeUnit unit) throws InterruptedException;
+
 	/**
 	 * Will return the next object in the incoming queue. If no object is 
 	 * ready for delivery, then the method blocks until incoming objects arrive. 
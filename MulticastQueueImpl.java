@@ -1,55 +1,440 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.Queue;
-import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MulticastQueueImpl<E extends Serializable> extends Thread
         implements MulticastQueue<E> {
+    /**
+     * How long leaveGroup() waits for the LEFT message to come around.
+     */
+    private static final long LEAVE_TIMEOUT = 5000;
+
+    /**
+     * How many traces getTracer() remembers.
+     */
+    private static final int TRACES_KEPT = 1000;
+
+    /**
+     * The size of the chunks a state is sent in, see setStateTransfer().
+     */
+    private static final int STATE_CHUNK_BYTES = 1 << 16;
+
+    /**
+     * How many chunks of a state may be on their way to the joining peer
+     * before writing it waits for them to be sent.
+     */
+    private static final int STATE_CHUNKS_PENDING = 64;
+
+    /**
+     * How many milliseconds writing a state waits for a chunk to be sent,
+     * or with a LocalTransport without a codec to be read, before giving
+     * up on the joining peer.
+     */
+    private static final long STATE_CHUNK_TIMEOUT = 60000;
+
+    /**
+     * The most messages kept for sending again, see RetransmitBuffer.
+     */
+    private static final int RETRANSMIT_CAPACITY = 1 << 16;
+
     private InetSocketAddress next, prev, thisPeer;
+    private int thisMember;
+    private Membership members;
+    private CountDownLatch leftRing;
     private DeliveryGuarantee deliveryGuarantee;
     private PointToPointQueueReceiverEnd<Message<E>> recvQueue;
     private PointToPointQueueSenderEnd<Message<E>> sendQueue;
-    private BlockingQueue<Message<E>> msgQueue;
-    private BlockingQueue<E> dataQueue;
+    private RetransmitBuffer<E> retransmits;
+    /*
+     * The highest timestamp, or else sequence number, of the DATA, ACK and
+     * STABLE messages received from each member, to drop those received
+     * again after a peer left. Only used by the thread of this queue.
+     */
+    private long[][] lastReceived = new long[3][0];
+    /*
+     * The peers asking to join here, the first one let in, see admit().
+     * Only used by the thread of this queue.
+     */
+    private final List<InetSocketAddress> joining =
+        new ArrayList<InetSocketAddress>();
+    /*
+     * Whether the first of joining has come around the ring as JOINED,
+     * and has got its state, so the next one may be let in.
+     */
+    private boolean firstJoined, firstCaughtUp;
+    private Map<Integer, PointToPointQueueSenderEnd<Message<E>>> links;
+    private Transport<Message<E>> transport;
+    private OrderingEngine<E> engine;
+    private Dissemination dissemination;
+    private BlockingQueue<Message<E>> dataQueue;
+    private Semaphore credits;
     private Integer port;
     private boolean dead;
-    private long counter;
+    private long ackFlushInterval;
+    private int batchCount = 1, batchBytes = 1 << 16;
+    private long lingerNanos;
+    private int compressionMinBytes;
+    private int fragmentBytes;
+    private DeliveryLog<Message<E>> deliveryLog;
+    /*
+     * Why appending to deliveryLog failed, null if it has not.
+     */
+    private volatile IOException logFailure;
+    /*
+     * Queued for poll() once logFailure is set, and told from the markers
+     * of the state transfers by identity, not by its member.
+     */
+    private final Message<E> logFailed =
+        new Message<E>(Message.NO_MEMBER, Message.Type.STATE);
+    private StateTransfer stateTransfer;
+    /*
+     * Guards the state transfers to and from this peer. Messages are
+     * delivered, and the transfers started, by the thread of this queue,
+     * so they keep their order in dataQueue without it.
+     */
+    private final Object transferLock = new Object();
+    private final Map<Integer, Donation> donations =
+        new HashMap<Integer, Donation>();
+    private Reception reception;
+    private BlockingQueue<Message<E>> stateChunks;
+    /*
+     * Whether there are donations or a reception, so delivery only looks
+     * at them while there are.
+     */
+    private volatile boolean transferring;
+    private Metrics metrics;
+    private LongAdder messagesPut, messagesDelivered;
+    private Histogram deliveryLatency, completionLatency;
+    private Tracer tracer;
+    private volatile int traceEvery;
 
     public MulticastQueueImpl() {
         this(null);
     }
 
     public MulticastQueueImpl(Integer port) {
-        sendQueue = new PointToPointQueueSenderEndNonRobust<Message<E>>();
-        recvQueue = new PointToPointQueueReceiverEndNonRobust<Message<E>>();
-        msgQueue = new PriorityBlockingQueue<Message<E>>();
-        dataQueue = new LinkedBlockingQueue<E>();
+        this(port, new TcpTransport<Message<E>>(new MessageCodec<E>()));
+    }
+
+    /**
+     * @param port      The port to listen on, null to use the port of the
+     *                  known peer when joining.
+     * @param transport Makes the ends used to talk to the other peers,
+     *                  e.g., a LocalTransport for peers in this JVM.
+     */
+    public MulticastQueueImpl(Integer port, Transport<Message<E>> transport) {
+        this.transport = transport;
+        sendQueue = newSenderEnd();
+        recvQueue = transport.newReceiverEnd();
+        links = new HashMap<Integer, PointToPointQueueSenderEnd<Message<E>>>();
+        dataQueue = new LinkedBlockingQueue<Message<E>>();
+        members = new Membership();
+        leftRing = new CountDownLatch(1);
         this.port = port;
         dead = false;
-        counter = 0;
+        ackFlushInterval = -1;
+        metrics = new Metrics();
+        messagesPut = new LongAdder();
+        messagesDelivered = new LongAdder();
+        deliveryLatency = new Histogram();
+        completionLatency = new Histogram();
+        metrics.add("messagesPut", messagesPut);
+        metrics.add("messagesDelivered", messagesDelivered);
+        metrics.add("deliveryLatency", deliveryLatency);
+        metrics.add("completionLatency", completionLatency);
+        metrics.add("dataQueue", new Metrics.Gauge() {
+                public long value() {
+                    return dataQueue.size();
+                }
+            });
+        metrics.add("heldBack", new Metrics.Gauge() {
+                public long value() {
+                    OrderingEngine<E> started = engine;
+                    return started == null ? 0 : started.heldBack();
+                }
+            });
+        recvQueue.setMetrics(metrics, "receiver.");
+        sendQueue.setMetrics(metrics, "next.");
+        tracer = new Tracer(TRACES_KEPT);
+    }
+
+    /**
+     * The counters of this peer, registered with JMX under
+     * "ddist:type=MulticastQueue,port=..." while it is in a group:
+     *
+     *   messagesPut, messagesDelivered  here
+     *   deliveryLatency    from put() at the member to delivery here
+     *   completionLatency  from put() here until the message has been
+     *                      around, see setFlowControl()
+     *   dataQueue          delivered messages waiting for poll()
+     *   heldBack           received messages the engine cannot deliver yet
+     *   receiver.*         the receiving end
+     *   next.*             the sending end to the next peer on the ring
+     *   retransmit.*       what has been sent to it and is not yet
+     *                      stable, see RetransmitBuffer
+     *   link.ID.*          the sending end straight to member ID, if any
+     *   log.*              the delivery log, if any
+     *
+     * Latencies between peers are only as good as their clocks are
+     * synchronized. Use Metrics.startReporting() to have them printed.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the engine deciding how messages travel and in which order they
+     * are delivered, instead of the one used for the delivery guarantee
+     * given to createGroup() or joinGroup(). E.g., a SequencerTotalOrder
+     * gives TOTAL order in two hops instead of around the ring. Must be
+     * called before createGroup() or joinGroup(), and all peers in the
+     * group must use the same kind of engine.
+     */
+    public void setOrderingEngine(OrderingEngine<E> engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Makes this peer pass messages on along the given dissemination, e.g.,
+     * a TreeDissemination, instead of around the ring. Applies to FIFO,
+     * NONE and CAUSAL; TOTAL around the ring needs the ring. Must be called
+     * before createGroup() or joinGroup(), and all peers in the group must
+     * use the same kind of dissemination.
+     */
+    public void setDissemination(Dissemination dissemination) {
+        this.dissemination = dissemination;
+    }
+
+    /**
+     * Bounds the memory used under overload. At most window messages put
+     * at this peer may be on their way at a time; while that many are,
+     * put() blocks and offer() gives up. A message stops counting when it
+     * has been around the ring, or when a SequencerTotalOrder sequencer
+     * has sent it back. Where no copy comes back, i.e., with a
+     * Dissemination set or at the sequencer itself, it stops counting as
+     * soon as this peer has passed it on, so the window does not bound
+     * anything there.
+     *
+     * At most capacity delivered messages wait for poll(). While that many
+     * do, this peer stops passing messages on, so the windows of the other
+     * peers fill up and their put() blocks too. Hence the application must
+     * not put() and poll() from the same thread. Must be called before
+     * createGroup() or joinGroup().
+     *
+     * @param window   Messages put at this peer which may be on their way.
+     * @param capacity Delivered messages which may wait for poll().
+     */
+    public void setFlowControl(int window, int capacity) {
+        if (window <= 0 || capacity <= 0)
+            throw new IllegalArgumentException(
+                    "Window and capacity must be positive");
+        credits = new Semaphore(window);
+        dataQueue = new LinkedBlockingQueue<Message<E>>(capacity);
+    }
+
+    /**
+     * Makes this peer acknowledge its messages by piggybacking on its next
+     * DATA message instead of sending an ACK around the ring for each of
+     * them. If no message is put for flushInterval milliseconds, pending
+     * acknowledgements are sent in a single ACK. Must be called before
+     * createGroup() or joinGroup(). The other peers need no configuration.
+     * Only applies to TOTAL order around the ring, see RingTotalOrder.
+     *
+     * @param flushInterval Milliseconds between sending pending
+     *                      acknowledgements when there is no traffic.
+     */
+    public void setAckPiggybacking(long flushInterval) {
+        if (flushInterval <= 0)
+            throw new IllegalArgumentException("Flush interval must be positive");
+        ackFlushInterval = flushInterval;
+    }
+
+    /**
+     * Lets each connection to another peer write up to maxCount pending
+     * messages, or about maxBytes of them, at once, instead of one message
+     * per write. With a linger time a connection waits up to that long for
+     * maxCount messages before writing, trading that much latency for
+     * fewer and larger writes under bursty load. The default is one
+     * message per write. Must be called before createGroup() or
+     * joinGroup(). The other peers need no configuration.
+     *
+     * @param maxCount Messages per write.
+     * @param maxBytes Bytes per write, exceeded only by the last message.
+     * @param linger   How long to wait for maxCount messages, 0 for not
+     *                 at all.
+     * @param unit     The unit of linger.
+     */
+    public void setBatching(int maxCount, int maxBytes, long linger,
+            TimeUnit unit) {
+        if (maxCount <= 0 || maxBytes <= 0 || linger < 0)
+            throw new IllegalArgumentException(
+                    "Batches must hold a message and linger must not be negative");
+        batchCount = maxCount;
+        batchBytes = maxBytes;
+        lingerNanos = unit.toNanos(linger);
+        sendQueue.setBatching(batchCount, batchBytes, lingerNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Compresses what this peer sends, a message or a batch of them, see
+     * setBatching(), when it is at least minBytes and compressing has
+     * paid off on that connection lately, see FrameCompressor. Worth it
+     * for payloads of many kilobytes which compress well, as each copy
+     * around the ring is smaller. Only the TcpTransport compresses. Must
+     * be called before createGroup() or joinGroup(). The other peers need
+     * no configuration.
+     *
+     * @param minBytes The least bytes worth compressing, 0 for none.
+     */
+    public void setCompression(int minBytes) {
+        if (minBytes < 0)
+            throw new IllegalArgumentException(
+                    "Minimum size must not be negative");
+        compressionMinBytes = minBytes;
+        sendQueue.setCompression(minBytes);
+    }
+
+    /**
+     * Sends messages larger than fragmentBytes, as encoded, in fragments of
+     * that size, interleaved with the messages put after them, so a large
+     * message holds up the others on each hop for no longer than it takes
+     * to send a fragment. The fragments are put together again at the
+     * next peer before the message is ordered. Which messages may
+     * overtake a fragmented one is up to the engine, see
+     * OrderingEngine.streamOf(); with TOTAL order none may, so only the
+     * writes get smaller. Only the TcpTransport with a GatheringCodec,
+     * e.g. MessageCodec, fragments. Must be called before createGroup()
+     * or joinGroup(). The other peers need no configuration.
+     *
+     * @param fragmentBytes The largest fragment, 0 for no fragmentation.
+     */
+    public void setFragmentation(int fragmentBytes) {
+        if (fragmentBytes < 0)
+            throw new IllegalArgumentException(
+                    "Fragment size must not be negative");
+        this.fragmentBytes = fragmentBytes;
+        sendQueue.setFragmentation(fragmentBytes, streams);
+    }
+
+    /**
+     * Appends each message delivered at this peer to log, in the order of
+     * delivery, before poll() can return it, so a restarted peer can
+     * replay what it delivered, e.g.
+     *
+     *   queue.setDeliveryLog(new DeliveryLog&lt;Message&lt;E&gt;&gt;(directory,
+     *           new MessageCodec&lt;E&gt;()));
+     *
+     * and DeliveryLog.replay() from the offset it had got to. The log is
+     * synced in batches by a thread of its own, so delivery only waits for
+     * the copy into the mapped file. Its counters are added to
+     * getMetrics() as log.*. leaveGroup() syncs the log but leaves it open.
+     * If appending fails, this peer stops delivering rather than deliver
+     * messages missing from the log, and poll() throws a RuntimeException
+     * once it has returned those logged before.
+     */
+    public void setDeliveryLog(DeliveryLog<Message<E>> log) {
+        log.setMetrics(metrics, "log.");
+        deliveryLog = log;
+    }
+
+    /**
+     * Has a peer joining the group start from the state the application
+     * has at the peer it joins after, the donor, instead of from nothing.
+     * When the joining peer becomes its next, the donor puts a marker
+     * after the messages delivered so far, and where its application
+     * polls the marker, poll() calls transfer.writeState(). The state is
+     * sent in chunks of STATE_CHUNK_BYTES on a connection of its own, so
+     * the ring goes on meanwhile. Then the donor sends the messages it
+     * delivered after the marker, the tail, until it has delivered every
+     * message it received before the joining peer became next; from there
+     * on the joining peer has received everything itself. The first poll()
+     * at the joining peer calls transfer.readState(), and then returns the
+     * tail followed by what is delivered there, without the messages
+     * already in the state or in the tail.
+     *
+     * The state is exact with the engines around the ring, FIFO and TOTAL
+     * without a Dissemination. With a SequencerTotalOrder or a
+     * Dissemination a message on its way while the peer joins may be
+     * missed or polled twice, as without a state transfer. Peers join one
+     * at a time: the next one asking is only let in when the one before
+     * has its state and tail. If the donor leaves during the transfer, the
+     * joining peer stops waiting for it when the LEFT message comes
+     * around: the first poll() throws a RuntimeException if the state had
+     * not all arrived, and messages of the tail still on their way may be
+     * missed or polled twice.
+     * Must be called before createGroup() or joinGroup(), on every peer.
+     */
+    public void setStateTransfer(StateTransfer transfer) {
+        stateTransfer = transfer;
+    }
+
+    /**
+     * Traces a random one in every oneIn messages put at this peer, see
+     * getTracer(). Messages traced by other peers are traced here too,
+     * whatever this is set to. The default, 0, traces nothing, and then
+     * a message costs one more test of a field. May be called at any time.
+     *
+     * @param oneIn How many messages per traced message, 0 for none.
+     */
+    public void setTracing(int oneIn) {
+        if (oneIn < 0)
+            throw new IllegalArgumentException("Cannot trace one in " + oneIn);
+        traceEvery = oneIn;
+    }
+
+    /**
+     * The timelines of the traced messages this peer has seen. The peer
+     * which put a message has the hops of the whole lap around the ring
+     * once the message and its ACK are back, or with a sequencer the hops
+     * to the sequencer and back. Each peer knows when it delivered a
+     * message; the others do not.
+     */
+    public Tracer getTracer() {
+        return tracer;
     }
 
     public void createGroup(int port, DeliveryGuarantee deliveryGuarantee)
             throws IOException {
         next = prev = thisPeer = 
             new InetSocketAddress(InetAddress.getLocalHost(), port);
+        thisMember = members.add(thisPeer);
         this.deliveryGuarantee = deliveryGuarantee;
+        startEngine();
         recvQueue.listenOnPort(port);
         sendQueue.setReceiver(next);
+        metrics.register("ddist:type=MulticastQueue,port=" + port);
     }
 
     public void joinGroup(InetSocketAddress knownPeer, 
             DeliveryGuarantee deliveryGuarantee) {
         if (port == null)
             port = knownPeer.getPort();
+        this.deliveryGuarantee = deliveryGuarantee;
         try {
             recvQueue.listenOnPort(port);
             thisPeer = new InetSocketAddress(InetAddress.getLocalHost(), port);
@@ -57,76 +442,311 @@ public class MulticastQueueImpl<E extends Serializable> extends Thread
             throw new RuntimeException("Cannot open server socket on port " +
                     port);
         }
+        metrics.register("ddist:type=MulticastQueue,port=" + port);
 
 
-        next = knownPeer;
-        sendQueue.setReceiver(next);
         prev = getPrev(knownPeer);
+        sendQueue.setReceiver(next);
+        if (stateTransfer != null)
+            startReception();
         setPrev(next, thisPeer);
-        setNext(prev, thisPeer);
+        setNext(prev, thisPeer, thisMember, stateTransfer != null);
+        // Tell the others our ID. It stops when it comes back to us.
+        sendQueue.put(new Message<E>(thisMember, Message.Type.JOINED,
+                    thisPeer));
 
+        startEngine();
         start();
     }
 
     public void put(E object) {
-        counter++;
-        Message<E> msg = new Message<E>(thisPeer, Message.Type.DATA, null,
+        if (credits != null)
+            credits.acquireUninterruptibly();
+        send(object);
+    }
+
+    public boolean offer(E object) {
+        if (credits != null && !credits.tryAcquire())
+            return false;
+        send(object);
+        return true;
+    }
+
+    public boolean offer(E object, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (credits != null && !credits.tryAcquire(timeout, unit))
+            return false;
+        send(object);
+        return true;
+    }
+
+    private void send(E object) {
+        Message<E> msg = new Message<E>(thisMember, Message.Type.DATA, null,
                 object);
-        msg.setTimestamp(counter);
-        sendQueue.put(msg);
+        msg.setPutTime(Metrics.wallClockMicros());
+        int every = traceEvery;
+        if (every > 0 && ThreadLocalRandom.current().nextInt(every) == 0) {
+            long traceId;
+            do {
+                traceId = ThreadLocalRandom.current().nextLong();
+            } while (traceId == 0);
+            msg.setTraceId(traceId);
+            msg.setHops(Tracer.append(null, thisMember, Tracer.Event.PUT,
+                        msg.getPutTime()));
+            tracer.record(traceId, thisMember, Tracer.Event.PUT,
+                    msg.getPutTime());
+        }
+        messagesPut.increment();
+        engine.put(msg);
+        // The sending ends have retained what they still need
+        msg.release();
     }
 
-    public synchronized E poll() {
+    public E poll() {
         try {
-            return dataQueue.take();
+            Message<E> msg = dataQueue.take();
+            while (msg.getType() == Message.Type.STATE) {
+                transferState(msg);
+                msg = dataQueue.take();
+            }
+            return msg.getData();
         }catch(InterruptedException e) {
             return null;
         }
     }
 
+    public E poll(long timeout, TimeUnit unit) {
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            Message<E> msg = dataQueue.poll(timeout, unit);
+            while (msg != null && msg.getType() == Message.Type.STATE) {
+                transferState(msg);
+                msg = dataQueue.poll(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            }
+            return msg == null ? null : msg.getData();
+        } catch(InterruptedException e) {
+            return null;
+        }
+    }
+
+    public E tryPoll() {
+        Message<E> msg = dataQueue.poll();
+        while (msg != null && msg.getType() == Message.Type.STATE) {
+            transferState(msg);
+            msg = dataQueue.poll();
+        }
+        return msg == null ? null : msg.getData();
+    }
+
+    public int drainTo(Collection<? super E> objects, int max) {
+        int drained = 0;
+        Message<E> msg;
+        while (drained < max && (msg = dataQueue.poll()) != null) {
+            if (msg.getType() == Message.Type.STATE) {
+                transferState(msg);
+                continue;
+            }
+            objects.add(msg.getData());
+            drained++;
+        }
+        return drained;
+    }
+
     public void leaveGroup() {
+        engine.stop();
+        // Let the others forget our ID before we leave the ring.
+        sendQueue.put(new Message<E>(thisMember, Message.Type.LEFT));
+        try {
+            leftRing.await(LEAVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Leave anyway
+        }
         dead = true;
         setPrev(next, prev);
-        setNext(prev, next);
+        setNext(prev, next, Message.NO_MEMBER, false);
         sendQueue.shutdown();
         recvQueue.shutdown();
+        synchronized (links) {
+            for (PointToPointQueueSenderEnd<Message<E>> link : links.values())
+                link.shutdown();
+            links.clear();
+        }
+        if (deliveryLog != null)
+            deliveryLog.sync();
+        metrics.stopReporting();
+        metrics.unregister();
     }
 
+    /**
+     * Whether a message put at this peer may not have been delivered at
+     * every other peer yet. Around the ring a message counts until it is
+     * stable, see RetransmitBuffer; with TOTAL order that is once its ACK
+     * has been around too, with ACK piggybacking after the flush interval
+     * at the latest. Messages sent straight to members, i.e. with a
+     * SequencerTotalOrder or a Dissemination, count until they are sent.
+     */
     public boolean areTherePendingSends() {
-        return !sendQueue.isEmpty();
+        if (!sendQueue.isEmpty()
+                || (retransmits != null && retransmits.holdsOwn()))
+            return true;
+        synchronized (links) {
+            for (PointToPointQueueSenderEnd<Message<E>> link : links.values())
+                if (!link.isEmpty())
+                    return true;
+        }
+        return false;
+    }
+
+    private void startEngine() {
+        if (engine == null) {
+            switch (deliveryGuarantee) {
+                case TOTAL:
+                    engine = new RingTotalOrder<E>(ackFlushInterval);
+                    break;
+                case CAUSAL:
+                    engine = new CausalOrder<E>();
+                    break;
+                default:
+                    engine = new FifoOrder<E>(
+                            deliveryGuarantee == DeliveryGuarantee.FIFO);
+            }
+        }
+        retransmits = new RetransmitBuffer<E>(thisMember, RETRANSMIT_CAPACITY);
+        retransmits.setMetrics(metrics, "retransmit.");
+        retransmits.setEnd(sendQueue);
+        engine.start(new Context());
     }
 
-    private void handleData(Message<E> msg) {
-        counter = Math.max(msg.getTimestamp(), counter) + 1;
+    private void deliver(Message<E> msg) {
+        if (msg.getPutTime() != 0)
+            deliveryLatency.record(
+                    (Metrics.wallClockMicros() - msg.getPutTime()) * 1000);
+        messagesDelivered.increment();
+        // The application releases it once polled
+        msg.retain();
+        if (msg.getTraceId() != 0)
+            tracer.record(msg.getTraceId(), thisMember,
+                    Tracer.Event.DELIVERED, Metrics.wallClockMicros());
+        if (transferring)
+            deliverWhileTransferring(msg);
+        else
+            handOver(msg);
+    }
 
-        // The mesage is from us
-        if (msg.getPeer().equals(thisPeer)) {
-            sendQueue.put(msg.makeAck());
-        } else { // Not from us
+    /**
+     * Logs a delivered message and queues it for poll(). Once logging has
+     * failed, drops the message instead, and the first time queues a
+     * marker for poll() to fail at.
+     */
+    private void handOver(Message<E> msg) {
+        if (logFailure != null) {
+            msg.release();
+            return;
+        }
+        if (deliveryLog != null) {
             try {
-                msgQueue.put(msg);
-            } catch(InterruptedException ex) {
-                throw new RuntimeException("DataQueue interrupted in put"
-                        +"with message: " + ex.getMessage());
+                deliveryLog.append(msg);
+            } catch (IOException e) {
+                System.err.println("Could not log message, no longer delivering: " + e);
+                logFailure = e;
+                msg.release();
+                enqueue(logFailed);
+                return;
             }
-            // Pass it on if not from self
-            sendQueue.put(msg);
         }
+        enqueue(msg);
     }
 
-    public void handleAck(Message<E> msg) {
-        if (msg.getPeer().equals(thisPeer)) 
-            return;
+    private void enqueue(Message<E> msg) {
         try {
-            Message<E> ackedMsg = msgQueue.take();
-            if (!msg.hasAck(ackedMsg)) { // This should never happen.
-                throw new RuntimeException("Invarianten er brudt!11");
-            }
-            dataQueue.put(ackedMsg.getData());
+            // Deserialized by poll(), on the thread of the application
+            dataQueue.put(msg);
         } catch(InterruptedException e) {
             System.err.println(e);
         }
-        sendQueue.put(msg); // Pass it on if not from self
+    }
+
+    /**
+     * Sends a message straight to a member, over a connection kept until
+     * the member or this peer leaves.
+     */
+    private void sendTo(int member, Message<E> msg) {
+        synchronized (links) {
+            PointToPointQueueSenderEnd<Message<E>> link = links.get(member);
+            if (link == null) {
+                InetSocketAddress address = members.get(member);
+                if (address == null)
+                    return; // Has left
+                link = newSenderEnd();
+                link.setMetrics(metrics, "link." + member + ".");
+                link.setReceiver(address);
+                links.put(member, link);
+            }
+            msg.retain();
+            link.put(msg);
+        }
+    }
+
+    private void closeLink(int member) {
+        synchronized (links) {
+            PointToPointQueueSenderEnd<Message<E>> link = links.remove(member);
+            if (link != null) {
+                link.shutdown();
+                metrics.removeAll("link." + member + ".");
+            }
+        }
+    }
+
+    /**
+     * What the engine sees of this queue.
+     */
+    private class Context implements GroupContext<E> {
+        public int getMemberId() {
+            return thisMember;
+        }
+
+        public Membership getMembers() {
+            return members;
+        }
+
+        public void forward(Message<E> msg) {
+            PointToPointQueueSenderEnd<Message<E>> end = retransmits.send(msg);
+            if (transferring)
+                forwardedWhileTransferring(end, msg);
+        }
+
+        public void disseminate(Message<E> msg) {
+            if (dissemination == null) {
+                forward(msg);
+                return;
+            }
+            for (int member : dissemination.forwardTo(msg.getMember(),
+                        thisMember, members))
+                MulticastQueueImpl.this.sendTo(member, msg);
+            // It does not come back to us
+            if (msg.getMember() == thisMember)
+                completed(msg);
+        }
+
+        public void completed(Message<E> msg) {
+            if (msg.getTraceId() != 0)
+                tracer.record(msg.getTraceId(), thisMember,
+                        Tracer.Event.COMPLETED, Metrics.wallClockMicros());
+            if (msg.getPutTime() != 0)
+                completionLatency.record(
+                        (Metrics.wallClockMicros() - msg.getPutTime()) * 1000);
+            if (credits != null)
+                credits.release();
+        }
+
+        public void sendTo(int member, Message<E> msg) {
+            MulticastQueueImpl.this.sendTo(member, msg);
+        }
+
+        public void deliver(Message<E> msg) {
+            MulticastQueueImpl.this.deliver(msg);
+        }
     }
 
 
@@ -137,29 +757,100 @@ public class MulticastQueueImpl<E extends Serializable> extends Thread
                 return;
             switch(msg.getType()){
                 case GET_PREV:
-                    PointToPointQueueSenderEnd<Message<E>> sendq = 
-                        new PointToPointQueueSenderEndNonRobust<Message<E>>();
-                    sendq.setReceiver(msg.getPeerData());
-                    Message<E> answer = new Message<E>(msg.getPeerData(),
-                            Message.Type.GET_PREV_ANSWER, prev);
-                    sendq.put(answer);
-                    sendq.shutdown();
+                    admit(msg);
                     break;
                 case SET_PREV:
                     prev = msg.getPeerData();
                     break;
                 case SET_NEXT:
                     next = msg.getPeerData();
+                    PointToPointQueueSenderEnd<Message<E>> nextEnd =
+                        newSenderEnd();
+                    nextEnd.setMetrics(metrics, "next.");
+                    nextEnd.setReceiver(next);
+                    // Before the switch, so the own messages sent to the
+                    // joining peer are counted
+                    if (msg.getMember() != Message.NO_MEMBER) {
+                        if (msg.getSequence() != 0)
+                            startDonation(msg.getMember(), next, nextEnd);
+                        retransmits.setEnd(nextEnd);
+                    } else {
+                        // A peer left, and may not have passed on all we
+                        // sent it
+                        retransmits.resend(nextEnd);
+                    }
                     sendQueue.shutdown();
-                    sendQueue = 
-                        new PointToPointQueueSenderEndNonRobust<Message<E>>();
-                    sendQueue.setReceiver(next);
+                    sendQueue = nextEnd;
                     break;
-                case DATA:
-                    handleData(msg);
+                case JOINED:
+                    if (!joining.isEmpty()
+                            && joining.get(0).equals(msg.getPeerData())) {
+                        firstJoined = true;
+                        admitNext();
+                    }
+                    if (msg.getMember() != thisMember) {
+                        members.put(msg.getMember(), msg.getPeerData());
+                        sendQueue.put(msg);
+                    }
+                    break;
+                case LEFT:
+                    if (msg.getMember() != thisMember) {
+                        if (transferring)
+                            leftWhileTransferring(msg.getMember());
+                        members.remove(msg.getMember());
+                        closeLink(msg.getMember());
+                        sendQueue.put(msg);
+                    } else {
+                        leftRing.countDown();
+                    }
                     break;
+                case DATA:
                 case ACK:
-                    handleAck(msg);
+                case ORDERED:
+                    if (isDuplicate(msg)) {
+                        msg.release();
+                        break;
+                    }
+                    if (msg.getTraceId() != 0)
+                        msg = traceArrival(msg);
+                    if (transferring)
+                        receivedWhileTransferring(msg);
+                    engine.receive(msg);
+                    // The engine has retained it if it still needs it
+                    msg.release();
+                    break;
+                case STABLE:
+                    if (isDuplicate(msg)) {
+                        msg.release();
+                        break;
+                    }
+                    if (msg.getMember() == thisMember)
+                        retransmits.stable(msg);
+                    else if (members.get(msg.getMember()) != null)
+                        retransmits.send(msg);
+                    // else its member has left and would not stop it
+                    // The buffer has retained it if it still needs it
+                    msg.release();
+                    break;
+                case CAUGHT_UP:
+                    if (msg.getPeerData() != null) {
+                        // From a peer let in here, see endReception()
+                        if (!joining.isEmpty()
+                                && joining.get(0).equals(msg.getPeerData())) {
+                            firstCaughtUp = true;
+                            admitNext();
+                        }
+                        break;
+                    }
+                    receiveState(msg);
+                    msg.release();
+                    break;
+                case STATE:
+                case TAIL:
+                case SHARED_TAIL:
+                    receiveState(msg);
+                    // Retained if still needed
+                    msg.release();
                     break;
                 default:
                     throw new RuntimeException("Wrong message type: "
@@ -168,30 +859,810 @@ public class MulticastQueueImpl<E extends Serializable> extends Thread
         }
     }
 
+    /**
+     * Whether a message passed on around the ring has been received
+     * before, as it was sent again after a peer left, see
+     * RetransmitBuffer.resend(). The messages of a member reach the new
+     * next peer in order, first from the peer which left and then the
+     * resent ones, and their timestamps or sequence numbers grow, so a
+     * resent one is a copy if it is not above the highest received. Only
+     * resent ones are checked, as while a peer joins the messages come on
+     * two connections and may be out of order. The first message of a
+     * FifoOrder member has neither, but the engine drops copies itself, as
+     * do the engines for ORDERED messages.
+     */
+    private boolean isDuplicate(Message<E> msg) {
+        long received = msg.getTimestamp() != 0
+            ? msg.getTimestamp() : msg.getSequence();
+        int kind;
+        switch (msg.getType()) {
+            case DATA:
+                kind = 0;
+                break;
+            case ACK:
+                kind = 1;
+                break;
+            case STABLE:
+                kind = 2;
+                break;
+            default:
+                return false;
+        }
+        if (received == 0)
+            return false;
+        int member = msg.getMember();
+        long[] last = lastReceived[kind];
+        if (member >= last.length)
+            last = lastReceived[kind] = Arrays.copyOf(last,
+                    Math.max(member + 1, 2 * last.length));
+        if (received <= last[member])
+            return msg.isResent();
+        last[member] = received;
+        return false;
+    }
+
+    /**
+     * Adds the hop to this peer to a traced message before the engine
+     * passes it on, and merges the hops so far into the timeline here.
+     * The hop goes on a copy, as other peers may hold the message itself,
+     * e.g. with a LocalTransport without a codec.
+     *
+     * @return The copy, to use instead of the message.
+     */
+    private Message<E> traceArrival(Message<E> msg) {
+        Tracer.Event event = msg.getType() == Message.Type.DATA
+            ? Tracer.Event.RECEIVED
+            : (msg.getType() == Message.Type.ACK
+                    ? Tracer.Event.ACK : Tracer.Event.ORDERED);
+        long now = Metrics.wallClockMicros();
+        tracer.merge(msg.getTraceId(), msg.getHops());
+        tracer.record(msg.getTraceId(), thisMember, event, now);
+        return msg.makeHopped(
+                Tracer.append(msg.getHops(), thisMember, event, now));
+    }
+
+    /**
+     * Asks peer to let this peer join. The answer comes from the member
+     * which hands out the IDs, see admit(), and this peer joins just before
+     * it on the ring, so it becomes next.
+     */
     private InetSocketAddress getPrev(InetSocketAddress peer) {
-        Message<E> msg = new Message<E>(peer, Message.Type.GET_PREV, thisPeer);
-        sendQueue.put(msg);
+        PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
+        sendq.setReceiver(peer);
+        sendq.put(new Message<E>(Message.NO_MEMBER, Message.Type.GET_PREV,
+                    thisPeer));
+        sendq.shutdown();
         Message<E> answer = recvQueue.poll();
         if (answer.getType() != Message.Type.GET_PREV_ANSWER)
             throw new RuntimeException("Got message of type "
                     + answer.getType() + " while joining");
+        thisMember = answer.getMember();
+        members.set(answer.getMembers());
+        next = members.get(members.lowest());
         return answer.getPeerData();
     }
 
+    /**
+     * Lets a peer join, one at a time. IDs are handed out only by the
+     * member with the lowest ID, so other members send it the request. It
+     * answers the next request once the peer it let in last is on the ring,
+     * i.e., its JOINED message has arrived, so the prev it hands out is
+     * always right.
+     *
+     * Should the member with the lowest ID leave, peers waiting to join
+     * there, or asking members which have not yet heard it left, wait for
+     * good, so a join should not be started while it leaves.
+     */
+    private void admit(Message<E> msg) {
+        int admitter = members.lowest();
+        if (admitter != thisMember) {
+            PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
+            sendq.setReceiver(members.get(admitter));
+            sendq.put(msg);
+            sendq.shutdown();
+            return;
+        }
+        joining.add(msg.getPeerData());
+        if (joining.size() == 1)
+            answerJoining();
+    }
+
+    /**
+     * Lets in the next joining peer once the one before has joined, and
+     * with a state transfer has caught up, as a peer still getting its
+     * state cannot pass it on.
+     */
+    private void admitNext() {
+        if (!firstJoined || !firstCaughtUp)
+            return;
+        joining.remove(0);
+        if (!joining.isEmpty())
+            answerJoining();
+    }
+
+    private void answerJoining() {
+        InetSocketAddress joiner = joining.get(0);
+        firstJoined = false;
+        firstCaughtUp = stateTransfer == null;
+        PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
+        sendq.setReceiver(joiner);
+        Message<E> answer = new Message<E>(members.add(joiner),
+                Message.Type.GET_PREV_ANSWER, prev);
+        answer.setMembers(members.toArray());
+        sendq.put(answer);
+        sendq.shutdown();
+    }
+
     private void setPrev(InetSocketAddress who, InetSocketAddress what) {
-        Message<E> msg = new Message<E>(who, Message.Type.SET_PREV, what);
+        Message<E> msg = new Message<E>(Message.NO_MEMBER,
+                Message.Type.SET_PREV, what);
         sendQueue.put(msg);
     }
 
-    private void setNext(InetSocketAddress who, InetSocketAddress what) {
-        PointToPointQueueSenderEnd<Message<E>> sendq = 
-            new PointToPointQueueSenderEndNonRobust<Message<E>>();
+    /**
+     * @param joiner The joining peer, or NO_MEMBER when a peer leaves.
+     * @param wantsState Whether the joining peer asks who for its state.
+     */
+    private void setNext(InetSocketAddress who, InetSocketAddress what,
+            int joiner, boolean wantsState) {
+        PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
         sendq.setReceiver(who);
-        Message<E> msg = new Message<E>(who, Message.Type.SET_NEXT, what);
+        Message<E> msg = new Message<E>(joiner, Message.Type.SET_NEXT, what);
+        if (wantsState)
+            msg.setSequence(1);
         sendq.put(msg);
         sendq.shutdown();
     }
 
+    /**
+     * The streams of the engine, once it is started; until then messages
+     * keep their order.
+     */
+    private final KeyFunction<Message<E>> streams =
+        new KeyFunction<Message<E>>() {
+            public Object keyOf(Message<E> msg) {
+                OrderingEngine<E> engine = MulticastQueueImpl.this.engine;
+                return engine == null ? null : engine.streamOf(msg);
+            }
+        };
+
+    /**
+     * Every sending end talking to a peer, also the short-lived ones used
+     * while joining, must come from the transport of the receiving ends,
+     * e.g., write frames on a persistent connection using the same codec.
+     */
+    private PointToPointQueueSenderEnd<Message<E>> newSenderEnd() {
+        PointToPointQueueSenderEnd<Message<E>> end = transport.newSenderEnd();
+        end.setBatching(batchCount, batchBytes, lingerNanos,
+                TimeUnit.NANOSECONDS);
+        end.setCompression(compressionMinBytes);
+        end.setFragmentation(fragmentBytes, streams);
+        return end;
+    }
+
+    /**
+     * Starts receiving the state from prev, see setStateTransfer(). The
+     * marker is the first message for poll().
+     */
+    private void startReception() {
+        stateChunks = new LinkedBlockingQueue<Message<E>>();
+        synchronized (transferLock) {
+            reception = new Reception(prev);
+            transferring = true;
+        }
+        enqueue(new Message<E>(thisMember, Message.Type.STATE));
+    }
+
+    /**
+     * Starts sending the state to a peer which has just become next, see
+     * setStateTransfer(). Called by the thread of this queue before it
+     * switches to nextEnd, so nothing is delivered meanwhile.
+     */
+    private void startDonation(int joiner, InetSocketAddress address,
+            PointToPointQueueSenderEnd<Message<E>> nextEnd) {
+        if (stateTransfer == null) {
+            // The joining peer gets no state
+            PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
+            sendq.setReceiver(address);
+            sendq.put(new Message<E>(Message.NO_MEMBER, Message.Type.STATE));
+            sendq.shutdown();
+            return;
+        }
+        Donation donation = new Donation(joiner, address, nextEnd,
+                engine.heldBack());
+        synchronized (transferLock) {
+            donations.put(joiner, donation);
+            transferring = true;
+        }
+        // Where writeState() is called, see poll()
+        enqueue(new Message<E>(joiner, Message.Type.STATE));
+    }
+
+    /**
+     * Called by poll() at a marker: reads the state if this peer is
+     * joining, or writes it for the joining peer. Fails at logFailed,
+     * the marker of a failed delivery log, see handOver().
+     */
+    private void transferState(Message<E> marker) {
+        if (marker == logFailed) {
+            // Left for the next poll(), which fails as well
+            dataQueue.offer(marker);
+            throw new RuntimeException("Cannot log the delivered messages: "
+                    + logFailure.getMessage());
+        }
+        if (marker.getMember() == thisMember) {
+            StateInputStream in = new StateInputStream(stateChunks);
+            try {
+                stateTransfer.readState(in);
+                in.skipRest();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the state: "
+                        + e.getMessage());
+            }
+            return;
+        }
+        Donation donation;
+        synchronized (transferLock) {
+            donation = donations.get(marker.getMember());
+        }
+        if (donation != null)
+            donation.sendState();
+    }
+
+    private void receivedWhileTransferring(Message<E> msg) {
+        if (msg.getType() == Message.Type.ACK
+                || msg.getMember() == thisMember)
+            return;
+        synchronized (transferLock) {
+            for (Donation donation : donations.values())
+                donation.received(msg);
+        }
+    }
+
+    private void forwardedWhileTransferring(
+            PointToPointQueueSenderEnd<Message<E>> end, Message<E> msg) {
+        if (msg.getType() != Message.Type.DATA
+                || msg.getMember() != thisMember)
+            return;
+        synchronized (transferLock) {
+            for (Donation donation : donations.values())
+                donation.forwarded(end);
+        }
+    }
+
+    /**
+     * Sends a delivered message in the tail to each joining peer, and
+     * holds it back or drops it while this peer is joining.
+     */
+    private void deliverWhileTransferring(Message<E> msg) {
+        boolean keep = true;
+        synchronized (transferLock) {
+            Iterator<Donation> donating = donations.values().iterator();
+            while (donating.hasNext()) {
+                Donation donation = donating.next();
+                if (donation.delivered(msg)) {
+                    donating.remove();
+                    donation.end.shutdown();
+                }
+            }
+            if (reception != null) {
+                keep = reception.delivered(msg);
+                if (reception.isDone())
+                    endReception();
+            }
+            transferring = !donations.isEmpty() || reception != null;
+        }
+        if (keep)
+            handOver(msg);
+    }
+
+    /**
+     * Takes a chunk of the state, or a message of the tail, from the
+     * donor.
+     */
+    private void receiveState(Message<E> msg) {
+        if (msg.getType() == Message.Type.STATE) {
+            if (stateChunks == null)
+                return;
+            msg.retain();
+            stateChunks.add(msg);
+            if (msg.getData() != null)
+                return;
+        }
+        List<Message<E>> caughtUp;
+        synchronized (transferLock) {
+            if (reception == null)
+                return;
+            caughtUp = reception.receive(msg);
+            if (reception.isDone())
+                endReception();
+            transferring = !donations.isEmpty() || reception != null;
+        }
+        for (Message<E> held : caughtUp)
+            handOver(held);
+    }
+
+    /**
+     * Ends the reception, and tells the member which let this peer in, so
+     * it lets in the next one, see admitNext(). Guarded by transferLock.
+     */
+    private void endReception() {
+        reception = null;
+        int admitter = members.lowest();
+        if (admitter == thisMember || admitter == Message.NO_MEMBER)
+            return;
+        PointToPointQueueSenderEnd<Message<E>> sendq = newSenderEnd();
+        sendq.setReceiver(members.get(admitter));
+        sendq.put(new Message<E>(thisMember, Message.Type.CAUGHT_UP,
+                    thisPeer));
+        sendq.shutdown();
+    }
+
+    /**
+     * Stops waiting for the donor if it is the member which left: ends
+     * the state where it got to, hands over what was held back for the
+     * tail, and ends the reception.
+     */
+    private void leftWhileTransferring(int member) {
+        InetSocketAddress address = members.get(member);
+        List<Message<E>> caughtUp;
+        synchronized (transferLock) {
+            if (reception == null || !reception.isFrom(address))
+                return;
+            if (!reception.hasState())
+                stateChunks.add(new Message<E>(Message.NO_MEMBER,
+                            Message.Type.STATE));
+            caughtUp = reception.donorLeft();
+            endReception();
+            transferring = !donations.isEmpty() || reception != null;
+        }
+        for (Message<E> held : caughtUp)
+            handOver(held);
+    }
+
+    /**
+     * Tells messages apart across peers, by the member which put them and
+     * their timestamp or sequence number, whichever the engine uses.
+     */
+    private static class MessageKey {
+        private final int member;
+        private final long timestamp, sequence;
+
+        MessageKey(Message<?> msg) {
+            member = msg.getMember();
+            timestamp = msg.getTimestamp();
+            sequence = msg.getSequence();
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof MessageKey))
+                return false;
+            MessageKey key = (MessageKey)other;
+            return member == key.member && timestamp == key.timestamp
+                && sequence == key.sequence;
+        }
+
+        public int hashCode() {
+            long hash = 31 * (31 * member + timestamp) + sequence;
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+
+    /**
+     * Sends the state of this peer to a peer which has become its next,
+     * followed by the tail. Guarded by transferLock, but for sendState().
+     */
+    private class Donation {
+        private final int joiner;
+        private final PointToPointQueueSenderEnd<Message<E>> end;
+        /*
+         * The end to the joining peer as next, and the own DATA messages
+         * sent on it, which the joining peer receives itself.
+         */
+        private final PointToPointQueueSenderEnd<Message<E>> nextEnd;
+        private long ownSent;
+        /*
+         * The messages received from the joining peer on, which it
+         * receives itself, until they are delivered.
+         */
+        private final Set<MessageKey> shared = new HashSet<MessageKey>();
+        /*
+         * The messages received before, still held back by the engine.
+         * Once they are delivered the joining peer has caught up.
+         */
+        private int unsharedLeft;
+        /*
+         * The tail until the state has been sent.
+         */
+        private final List<Message<E>> pending = new ArrayList<Message<E>>();
+        private boolean stateSent, caughtUp;
+
+        Donation(int joiner, InetSocketAddress address,
+                PointToPointQueueSenderEnd<Message<E>> nextEnd,
+                int heldBack) {
+            this.joiner = joiner;
+            this.nextEnd = nextEnd;
+            end = newSenderEnd();
+            end.setReceiver(address);
+            unsharedLeft = heldBack;
+            if (unsharedLeft == 0)
+                catchUp();
+        }
+
+        void received(Message<E> msg) {
+            shared.add(new MessageKey(msg));
+        }
+
+        void forwarded(PointToPointQueueSenderEnd<Message<E>> to) {
+            if (to == nextEnd)
+                ownSent++;
+        }
+
+        /**
+         * @return Whether the joining peer needs nothing more.
+         */
+        boolean delivered(Message<E> msg) {
+            if (caughtUp)
+                return stateSent;
+            boolean isShared = shared.remove(new MessageKey(msg));
+            Message<E> copy = new Message<E>(msg.getMember(), isShared
+                    ? Message.Type.SHARED_TAIL : Message.Type.TAIL);
+            copy.setDataOf(msg);
+            copy.setTimestamp(msg.getTimestamp());
+            copy.setSequence(msg.getSequence());
+            copy.setPutTime(msg.getPutTime());
+            // The sending end releases it
+            copy.retain();
+            send(copy);
+            if (!isShared && --unsharedLeft == 0)
+                catchUp();
+            return caughtUp && stateSent;
+        }
+
+        private void catchUp() {
+            caughtUp = true;
+            send(new Message<E>(Message.NO_MEMBER, Message.Type.CAUGHT_UP));
+        }
+
+        private void send(Message<E> msg) {
+            if (stateSent)
+                end.put(msg);
+            else
+                pending.add(msg);
+        }
+
+        /**
+         * Writes the state, on the thread of the application, and then
+         * the tail so far.
+         */
+        void sendState() {
+            long covered;
+            synchronized (transferLock) {
+                covered = ownSent;
+            }
+            StateOutputStream out = new StateOutputStream(end);
+            boolean written = true;
+            try {
+                stateTransfer.writeState(out);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Could not write the state: " + e);
+                written = false;
+            }
+            // The end of the state, with the own messages in it which the
+            // joining peer receives itself
+            Message<E> last = new Message<E>(
+                    written ? thisMember : Message.NO_MEMBER,
+                    Message.Type.STATE);
+            last.setSequence(covered);
+            synchronized (transferLock) {
+                end.put(last);
+                for (Message<E> msg : pending)
+                    end.put(msg);
+                pending.clear();
+                stateSent = true;
+                if (caughtUp) {
+                    donations.remove(joiner);
+                    end.shutdown();
+                    transferring = !donations.isEmpty() || reception != null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the tail at a joining peer, and holds back what is
+     * delivered here until the tail has caught up. Guarded by
+     * transferLock.
+     */
+    private class Reception {
+        /*
+         * Delivered here before the tail caught up.
+         */
+        private final Map<MessageKey, Message<E>> held =
+            new LinkedHashMap<MessageKey, Message<E>>();
+        /*
+         * Messages of the tail which are not yet delivered here.
+         */
+        private final Set<MessageKey> fromTail = new HashSet<MessageKey>();
+        /*
+         * The donor, and how many of its first messages delivered here
+         * are in its state.
+         */
+        private int donor = Message.NO_MEMBER;
+        private long covered;
+        private boolean caughtUp;
+        /*
+         * The address of the donor, to tell when it leaves.
+         */
+        private final InetSocketAddress from;
+
+        Reception(InetSocketAddress from) {
+            this.from = from;
+        }
+
+        /**
+         * @return Whether to hand the message over to the application.
+         */
+        boolean delivered(Message<E> msg) {
+            MessageKey key = new MessageKey(msg);
+            if (fromTail.remove(key)) {
+                msg.release();
+                return false;
+            }
+            if (!caughtUp) {
+                held.put(key, msg);
+                return false;
+            }
+            return !inState(msg);
+        }
+
+        /**
+         * @return The messages to hand over to the application, in order.
+         */
+        List<Message<E>> receive(Message<E> msg) {
+            List<Message<E>> handOver = new ArrayList<Message<E>>();
+            if (caughtUp)
+                return handOver;
+            switch (msg.getType()) {
+                case STATE:
+                    if (msg.getMember() != Message.NO_MEMBER) {
+                        donor = msg.getMember();
+                        covered = msg.getSequence();
+                    } else {
+                        // No state, so there is no tail either
+                        catchUp(handOver);
+                    }
+                    break;
+                case CAUGHT_UP:
+                    catchUp(handOver);
+                    break;
+                case SHARED_TAIL:
+                    if (msg.getMember() == thisMember)
+                        break;
+                    Message<E> same = held.remove(new MessageKey(msg));
+                    if (same != null)
+                        same.release();
+                    else
+                        fromTail.add(new MessageKey(msg));
+                    msg.retain();
+                    handOver.add(msg);
+                    break;
+                default:
+                    if (msg.getMember() == thisMember)
+                        break;
+                    msg.retain();
+                    handOver.add(msg);
+            }
+            return handOver;
+        }
+
+        /**
+         * Ends the tail when the donor has left, see
+         * leftWhileTransferring().
+         *
+         * @return The messages to hand over to the application, in order.
+         */
+        List<Message<E>> donorLeft() {
+            List<Message<E>> handOver = new ArrayList<Message<E>>();
+            if (!caughtUp)
+                catchUp(handOver);
+            return handOver;
+        }
+
+        /**
+         * Whether the end of the state has arrived.
+         */
+        boolean hasState() {
+            return donor != Message.NO_MEMBER || caughtUp;
+        }
+
+        boolean isFrom(InetSocketAddress address) {
+            return from != null && from.equals(address);
+        }
+
+        /**
+         * Hands over the messages held back, but those in the state, as
+         * the tail has caught up.
+         */
+        private void catchUp(List<Message<E>> handOver) {
+            caughtUp = true;
+            for (Message<E> later : held.values()) {
+                if (inState(later))
+                    later.release();
+                else
+                    handOver.add(later);
+            }
+            held.clear();
+        }
+
+        private boolean inState(Message<E> msg) {
+            if (msg.getMember() != donor || covered == 0)
+                return false;
+            covered--;
+            msg.release();
+            return true;
+        }
+
+        boolean isDone() {
+            return caughtUp && fromTail.isEmpty() && covered == 0;
+        }
+    }
+
+    /**
+     * Sends what writeState() writes to the joining peer in chunks.
+     */
+    private class StateOutputStream extends OutputStream {
+        private final PointToPointQueueSenderEnd<Message<E>> end;
+        private Payload chunk;
+        /*
+         * A permit for each chunk which may be on its way, given back when
+         * the chunk is released, i.e., the sending end is done with it.
+         * Bounds the memory used when the state is written faster than it
+         * is sent.
+         */
+        private final Semaphore window = new Semaphore(STATE_CHUNKS_PENDING);
+        private final Runnable sent = new Runnable() {
+                public void run() {
+                    window.release();
+                }
+            };
+
+        StateOutputStream(PointToPointQueueSenderEnd<Message<E>> end) {
+            this.end = end;
+        }
+
+        public void write(int b) throws IOException {
+            room();
+            chunk.buffer().put((byte)b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                room();
+                int n = Math.min(len, chunk.buffer().remaining());
+                chunk.buffer().put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void flush() throws IOException {
+            if (chunk == null)
+                return;
+            boolean room = false;
+            try {
+                room = window.tryAcquire(STATE_CHUNK_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                if (!room) {
+                    chunk.release();
+                    chunk = null;
+                }
+            }
+            if (!room)
+                throw new IOException("The joining peer takes no more of the state");
+            chunk.buffer().flip();
+            chunk.setOnRelease(sent);
+            Message<E> msg = newChunk(chunk);
+            chunk = null;
+            end.put(msg);
+        }
+
+        /**
+         * Whatever E is, a chunk of the state goes as a Payload.
+         */
+        @SuppressWarnings("unchecked")
+        private Message<E> newChunk(Payload chunk) {
+            return new Message<E>(thisMember, Message.Type.STATE, null,
+                    (E)(Object)chunk);
+        }
+
+        private void room() throws IOException {
+            if (chunk != null && !chunk.buffer().hasRemaining())
+                flush();
+            if (chunk == null)
+                chunk = Payload.allocate(STATE_CHUNK_BYTES);
+        }
+    }
+
+    /**
+     * Reads the chunks of the state at the joining peer, as they arrive.
+     */
+    private class StateInputStream extends InputStream {
+        private final BlockingQueue<Message<E>> chunks;
+        private Message<E> chunk;
+        private ByteBuffer bytes;
+        private boolean ended;
+
+        StateInputStream(BlockingQueue<Message<E>> chunks) {
+            this.chunks = chunks;
+        }
+
+        public int read() throws IOException {
+            if (!hasBytes())
+                return -1;
+            return bytes.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!hasBytes())
+                return -1;
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        public int available() {
+            return bytes == null ? 0 : bytes.remaining();
+        }
+
+        /**
+         * Reads what readState() left, giving the chunks back to the
+         * pool.
+         */
+        void skipRest() throws IOException {
+            while (hasBytes())
+                bytes.position(bytes.limit());
+        }
+
+        /**
+         * Waits for the next chunk if this one is read.
+         *
+         * @return Whether there are bytes left in the state.
+         */
+        private boolean hasBytes() throws IOException {
+            while (!ended && (bytes == null || !bytes.hasRemaining())) {
+                if (chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                    bytes = null;
+                }
+                Message<E> next;
+                try {
+                    next = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                Object data = next.getData();
+                if (data == null) {
+                    ended = true;
+                    if (next.getMember() == Message.NO_MEMBER)
+                        throw new IOException(
+                                "The peer joined after sent no state");
+                } else {
+                    chunk = next;
+                    bytes = ((Payload)data).content();
+                }
+            }
+            return !ended;
+        }
+    }
+
     public static void main(String... args) throws Exception {
         if (args.length < 1 || args.length > 3) {
             System.err.println("Usage: ./command port [knownPeerIP [portToUse]]");
@@ -0,0 +1,65 @@
+import java.io.Serializable;
+
+/**
+ * Decides how the messages put at the peers of a MulticastQueueImpl travel
+ * and in which order they are delivered. One engine runs at each peer, and
+ * all peers of a group must use the same kind of engine.
+ *
+ * receive() is called from the thread of the queue, put() from the threads
+ * of the application. The message passed to either is only lent to the
+ * engine for the call; an engine keeping it for later must retain() it,
+ * and release() it when done, so a Payload is not given back to its pool
+ * under it.
+ */
+public interface OrderingEngine<E extends Serializable> {
+
+    /**
+     * Called when this peer has created or joined the group, before any
+     * message is put or received.
+     *
+     * @param group The group this engine orders messages for.
+     */
+    public void start(GroupContext<E> group);
+
+    /**
+     * Stamps a DATA message put at this peer and sends it on its way.
+     *
+     * @param msg The message, with the member ID and payload set.
+     */
+    public void put(Message<E> msg);
+
+    /**
+     * Handles a DATA, ACK or ORDERED message arriving at this peer.
+     *
+     * @param msg The message.
+     */
+    public void receive(Message<E> msg);
+
+    /**
+     * Called when this peer leaves the group, before it leaves the ring.
+     * Should send anything the other peers still need from this peer.
+     */
+    public void stop();
+
+    /**
+     * Read from another thread for the metrics of the queue, so it should
+     * be cheap and need not be exact.
+     *
+     * @return How many received messages wait for earlier ones before
+     *         they can be delivered.
+     */
+    public int heldBack();
+
+    /**
+     * Tells which messages may overtake each other on their way to another
+     * peer, e.g. while a large message is sent in fragments, see
+     * PointToPointQueueSenderEnd.setFragmentation(). Called from the
+     * threads of the sending ends.
+     *
+     * @return The stream of the message; messages of different streams
+     *         may arrive in another order than they were sent. Null if
+     *         the message must stay in order with all others.
+     */
+    public Object streamOf(Message<E> msg);
+
+}
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bytes in a pooled direct ByteBuffer, for applications with an encoding of
+ * their own. A MulticastQueueImpl&lt;Payload&gt; with MessageCodec over TCP
+ * writes the bytes from the buffer to the socket without copying them, and
+ * the receiving peers copy them once, from the frame they read, into pooled
+ * buffers, without going through Java's serialization. A peer passing the
+ * payload on writes it from its pooled buffer again.
+ *
+ * The bytes are those between 0 and the limit of buffer(), so fill it and
+ * flip() it before put(). put() takes over the reference of the caller, so
+ * the payload must not be touched afterwards. poll() hands a reference to
+ * the caller, who must release() the payload when done with it, to give
+ * the buffer back to the pool.
+ */
+public class Payload implements Serializable, ReferenceCounted {
+
+	private static final long serialVersionUID = 1L;
+
+	/*
+	 * Shared by all payloads in this JVM.
+	 */
+	private static final BufferPool pool = new BufferPool(1024);
+
+	/*
+	 * Used for copying between streams and direct buffers.
+	 */
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[8192];
+		}
+	};
+
+	private transient ByteBuffer buffer;
+	private transient AtomicInteger references;
+
+	/*
+	 * Run when the last reference is released, null for nothing.
+	 */
+	private transient volatile Runnable onRelease;
+
+	private Payload(ByteBuffer buffer) {
+		this.buffer = buffer;
+		references = new AtomicInteger(1);
+	}
+
+	/**
+	 *
+	 * @param size The most bytes the payload can hold.
+	 * @return A payload whose buffer() has position 0 and limit size.
+	 */
+	public static Payload allocate(int size) {
+		return new Payload(pool.acquire(size));
+	}
+
+	/**
+	 *
+	 * @return A payload holding the bytes from position to limit of bytes.
+	 *         The position of bytes is moved to its limit.
+	 */
+	public static Payload copyOf(ByteBuffer bytes) {
+		Payload payload = allocate(bytes.remaining());
+		payload.buffer.put(bytes);
+		payload.buffer.flip();
+		return payload;
+	}
+
+	/**
+	 * Reads length bytes from a stream into a new payload.
+	 */
+	public static Payload readFrom(DataInput in, int length) throws IOException {
+		Payload payload = allocate(length);
+		byte[] chunk = scratch.get();
+		while (payload.buffer.hasRemaining()) {
+			int n = Math.min(chunk.length, payload.buffer.remaining());
+			in.readFully(chunk, 0, n);
+			payload.buffer.put(chunk, 0, n);
+		}
+		payload.buffer.flip();
+		return payload;
+	}
+
+	/**
+	 * The buffer holding the bytes, to fill before put() or read after
+	 * poll(). Do not hand it to other threads, they must use content().
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 *
+	 * @return A view of the bytes with its own position and limit, so
+	 *         several threads can read them at the same time.
+	 */
+	public ByteBuffer content() {
+		ByteBuffer content = buffer.duplicate();
+		content.position(0);
+		return content;
+	}
+
+	/**
+	 *
+	 * @return The number of bytes.
+	 */
+	public int length() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes the bytes to a stream, without the length.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		ByteBuffer content = content();
+		byte[] chunk = scratch.get();
+		while (content.hasRemaining()) {
+			int n = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	/**
+	 * Runs whenReleased, on the thread releasing it, once the last
+	 * reference is released, e.g. to learn when a sending end is done
+	 * with the payload. Copies made of the payload do not run it.
+	 */
+	public void setOnRelease(Runnable whenReleased) {
+		onRelease = whenReleased;
+	}
+
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			pool.release(buffer);
+			buffer = null;
+			Runnable whenReleased = onRelease;
+			if (whenReleased != null) {
+				whenReleased.run();
+			}
+		}
+	}
+
+	public String toString() {
+		return "Payload[" + (buffer == null ? "released" : buffer.limit() + " bytes") + "]";
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.writeInt(length());
+		writeTo(out);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException {
+		Payload read = readFrom(in, in.readInt());
+		buffer = read.buffer;
+		references = read.references;
+	}
+}
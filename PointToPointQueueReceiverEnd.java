@@ -30,12 +30,24 @@ public interface PointToPointQueueReceiverEnd<E extends Serializable> extends Ru
 	 * to shutdown() all bets are off.
 	 */
 	public void shutdown();
+
+	/**
+	 * Names the counters of this end in metrics: messagesReceived, 
+	 * bytesReceived and pending, the objects waiting for poll(). The 
+	 * counters are kept whether or not this is called.
+	 * 
+	 * @param metrics Where to add the counters.
+	 * @param prefix Put in front of each name, e.g. "receiver.".
+	 */
+	public void setMetrics(Metrics metrics, String prefix);
 	
 	/**
 	 * Will return the next object in this incoming queue. If the queue is empty, then 
 	 * the method blocks until incoming objects arrive. Removes the object from the queue.
 	 * Must only be called when no listener is registered on the queue. It returns null if
 	 * this queue is empty, i.e., if it is shutdown and has delivered all received objects.
+	 * This and the other methods of Pollable must only be called by one thread at a time,
+	 * e.g., the thread of the MulticastQueueImpl using this end.
 	 * 
 	 * @return The front of the queue.
 	 */
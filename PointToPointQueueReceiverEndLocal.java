@@ -0,0 +1,64 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *
+ * Receiving end of a queue whose sending ends are in the same JVM, see
+ * LocalTransport. Instead of opening a server socket, it registers under its
+ * port, and PointToPointQueueSenderEndLocal adds objects to it directly.
+ * Needs no thread of its own.
+ *
+ */
+
+public class PointToPointQueueReceiverEndLocal<E extends Serializable> extends PointToPointQueueReceiverEndNonRobust<E> {
+
+	/*
+	 * The receiving ends in this JVM by port.
+	 */
+	private static final ConcurrentMap<Integer, PointToPointQueueReceiverEndLocal<?>> listening = 
+		new ConcurrentHashMap<Integer, PointToPointQueueReceiverEndLocal<?>>();
+
+	/*
+	 * The port this end is registered under, null if not listening.
+	 */
+	private Integer port;
+
+	/**
+	 * Registers this receiving end under the port.
+	 *
+	 * @param port The port number sending ends will address this end by.
+	 * @throws IOException when another end in this JVM is listening on the port.
+	 */
+	public void listenOnPort(int port) throws IOException {
+		if (listening.putIfAbsent(port, this) != null) {
+			throw new IOException("Port " + port + " already in use in this JVM");
+		}
+		this.port = port;
+	}
+
+	/**
+	 * Unregisters this end. Objects already added can still be polled.
+	 */
+	public void shutdown() {
+		super.shutdown();
+		if (port != null) {
+			listening.remove(port, this);
+		}
+	}
+
+	/**
+	 * Nothing to do, objects are added by the sending ends.
+	 */
+	public void run() {
+	}
+
+	/**
+	 * 
+	 * @return The receiving end listening on the port, null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends Serializable> PointToPointQueueReceiverEndLocal<T> lookup(int port) {
+		return (PointToPointQueueReceiverEndLocal<T>)listening.get(port);
+	}
+}
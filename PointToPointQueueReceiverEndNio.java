@@ -0,0 +1,477 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * Receiving end of a distributed queue of objects of class E built on a
+ * java.nio Selector. A single thread accepts connections and reads from all
+ * of them without blocking, so many senders can keep their connections open
+ * and push objects at the same time. The senders must write each object as
+ * a frame, as PointToPointQueueSenderEndFramed does: a four byte length
+ * followed by the object as written by the Codec of the queue. A
+ * GatheringCodec takes the body of a frame straight from the read buffer.
+ * That buffer is on the heap and reused for the next frames, and the codecs
+ * read the head through its array, so a body which is kept, such as a
+ * Payload, is copied out of it once.
+ * Frames compressed by a FrameCompressor are inflated first, and fragments
+ * written by a PointToPointQueueSenderEndGathering are put together again,
+ * whether or not this end was told anything about it. The fragments of a
+ * connection which breaks are dropped; the sending end starts over.
+ *
+ */
+
+public class PointToPointQueueReceiverEndNio<E extends Serializable> extends PointToPointQueueReceiverEndNonRobust<E> {
+
+	/*
+	 * Flags in the length of a frame.
+	 */
+	private static final int FLAGS = FrameCompressor.COMPRESSED | PointToPointQueueSenderEndGathering.FRAGMENT;
+
+	/*
+	 * The size of the initial read buffer of each connection. The buffer
+	 * grows if a frame does not fit.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/*
+	 * The largest frame taken by default, see setMaxFrameBytes().
+	 */
+	public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+	/*
+	 * The largest frame taken. A connection sending a larger one is closed.
+	 */
+	private volatile int maxFrameBytes = MAX_FRAME_BYTES;
+
+	/*
+	 * Waits for incoming connections and data on the open connections.
+	 */
+	private Selector selector;
+
+	/*
+	 * The channel on which this receiving end is listening for incoming
+	 * connections.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/*
+	 * Reads the objects from the frames.
+	 */
+	private final Codec<E> codec;
+
+	/*
+	 * The codec, if it is a GatheringCodec, else null.
+	 */
+	private final GatheringCodec<E> gatheringCodec;
+
+	/*
+	 * Points at the frame being decoded. Only used by the selector thread.
+	 */
+	private final FrameInputStream frame = new FrameInputStream();
+
+	/*
+	 * Used by the codec to read from frame.
+	 */
+	private final DataInputStream forDecoding = new DataInputStream(frame);
+
+	/*
+	 * Inflates compressed frames into inflated, which grows as needed.
+	 * Made on first use. Only used by the selector thread.
+	 */
+	private Inflater inflater;
+	private byte[] inflated = new byte[0];
+
+	/**
+	 * Creates a receiving end reading objects written with Java's serialization.
+	 */
+	PointToPointQueueReceiverEndNio() {
+		this(new SerializationCodec<E>());
+	}
+
+	/**
+	 * 
+	 * @param codec Reads the objects from the frames.
+	 */
+	PointToPointQueueReceiverEndNio(Codec<E> codec) {
+		this.codec = codec;
+		gatheringCodec = codec instanceof GatheringCodec ? (GatheringCodec<E>)codec : null;
+	}
+
+	/**
+	 * Bounds the frames taken from the wire, so a corrupt or hostile length
+	 * cannot make this end allocate without limit. A connection sending a
+	 * larger frame is closed, as is one sending a compressed frame which
+	 * says it inflates to more.
+	 *
+	 * @param maxBytes The largest frame, without its length, MAX_FRAME_BYTES
+	 *                 by default.
+	 */
+	public void setMaxFrameBytes(int maxBytes) {
+		maxFrameBytes = maxBytes;
+	}
+
+	/**
+	 * Specifies the port on which this receiving end is listening.
+	 *
+	 * @param port The port number on which this receiving end is waiting for connections.
+	 * @throws IOException when it cannot open the server socket on the given port.
+	 */
+	public void listenOnPort(int port) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		this.start();
+	}
+
+	/**
+	 * Calling this method will make the queue stop receiving incoming messages.
+	 * Should only be done when the sending ends no longer try to send messages
+	 * to this queue.
+	 */
+	public void shutdown() {
+		super.shutdown();
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Starts a thread which accepts incoming connections and reads the frames
+	 * arriving on them, adding the objects to this queue, so they can be
+	 * retrieved using poll(). Stops after shutdown() is called.
+	 */
+	public void run() {
+		while (!isShutdown()) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("Problems waiting for incoming connections!");
+				System.err.println(e);
+				break;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					acceptConnection();
+				} else if (key.isReadable()) {
+					readFrames(key);
+				}
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			closeConnection(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// IGNORE AND CLOSE
+		}
+	}
+
+	/**
+	 * Accepts a pending connection and registers it for reading.
+	 */
+	private void acceptConnection() {
+		try {
+			SocketChannel channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new Connection());
+		} catch (IOException e) {
+			System.err.println("Problems accepting incoming connections!");
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Reads what is available on a connection and delivers all frames which
+	 * are now complete. An incomplete frame stays in the buffer of the
+	 * connection until the rest of it arrives.
+	 *
+	 * @param key The key of the readable connection.
+	 */
+	private void readFrames(SelectionKey key) {
+		SocketChannel channel = (SocketChannel)key.channel();
+		Connection connection = (Connection)key.attachment();
+		ByteBuffer buffer = connection.buffer;
+		int read;
+		try {
+			read = channel.read(buffer);
+		} catch (IOException e) {
+			System.err.println("Problems receiving object on " + channel);
+			closeConnection(key);
+			return;
+		}
+		if (read > 0) {
+			bytesReceived.add(read);
+		}
+		buffer.flip();
+		while (buffer.remaining() >= 4) {
+			int flags = buffer.getInt(buffer.position()) & FLAGS;
+			int length = buffer.getInt(buffer.position()) & ~FLAGS;
+			if (length > maxFrameBytes) {
+				System.err.println("Frame of " + length + " bytes too large on " + channel);
+				closeConnection(key);
+				return;
+			}
+			if (buffer.remaining() < 4 + length) {
+				break;
+			}
+			buffer.position(buffer.position() + 4);
+			int end = buffer.position() + length;
+			if ((flags & FrameCompressor.COMPRESSED) != 0) {
+				if (!inflateFrames(buffer, length, connection, channel)) {
+					closeConnection(key);
+					return;
+				}
+			} else if (!deliverFrame(buffer, flags, length, connection, channel)) {
+				closeConnection(key);
+				return;
+			}
+			buffer.position(end);
+		}
+		buffer.compact();
+		if (buffer.remaining() == 0) {
+			// The next frame is larger than the buffer, but not too large
+			ByteBuffer larger = ByteBuffer.allocate((int)Math.min(2L * buffer.capacity(), 4L + maxFrameBytes));
+			buffer.flip();
+			larger.put(buffer);
+			connection.buffer = larger;
+		}
+		if (read < 0) {
+			// The sending end closed the connection
+			closeConnection(key);
+		}
+	}
+
+	/**
+	 * Inflates the compressed frame at the position of the buffer and
+	 * delivers the frames it holds. May move the position.
+	 *
+	 * @return False if the frame says it inflates to more than the largest
+	 *         frame taken, or holds a fragment deliverFrame() does not
+	 *         take, so the connection is to be closed.
+	 */
+	private boolean inflateFrames(ByteBuffer buffer, int length, Connection connection, SocketChannel channel) {
+		if (length < 4) {
+			System.err.println("Compressed frame too short on " + channel);
+			return true;
+		}
+		int inflatedLength = buffer.getInt();
+		if (inflatedLength < 0) {
+			System.err.println("Bad compressed frame on " + channel);
+			return true;
+		}
+		if (inflatedLength > maxFrameBytes) {
+			System.err.println("Compressed frame inflating to " + inflatedLength + " bytes too large on " + channel);
+			return false;
+		}
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		if (inflated.length < inflatedLength) {
+			inflated = new byte[inflatedLength];
+		}
+		inflater.reset();
+		inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), length - 4);
+		int done = 0;
+		try {
+			while (done < inflatedLength && !inflater.finished()) {
+				int n = inflater.inflate(inflated, done, inflatedLength - done);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				done += n;
+			}
+		} catch (DataFormatException e) {
+			System.err.println("Problems inflating frame on " + channel);
+			System.err.println(e);
+			return true;
+		}
+		if (done != inflatedLength) {
+			System.err.println("Compressed frame shorter than it says on " + channel);
+			return true;
+		}
+		ByteBuffer frames = ByteBuffer.wrap(inflated, 0, inflatedLength);
+		while (frames.remaining() >= 4) {
+			int flags = frames.getInt(frames.position()) & FLAGS;
+			int frameLength = frames.getInt() & ~FLAGS;
+			if ((flags & FrameCompressor.COMPRESSED) != 0 || frameLength > frames.remaining()) {
+				System.err.println("Bad frame in compressed frame on " + channel);
+				return true;
+			}
+			int end = frames.position() + frameLength;
+			if (!deliverFrame(frames, flags, frameLength, connection, channel)) {
+				return false;
+			}
+			frames.position(end);
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers the object in an uncompressed frame at the position of the
+	 * buffer, or adds the fragment there to the object it is part of,
+	 * delivering the object once all its fragments are there. May move
+	 * the position.
+	 *
+	 * @return False if the fragment says its object is larger than the
+	 *         largest frame taken, or does not follow the fragments of the
+	 *         object already there, which the sending end writes in order,
+	 *         so the connection is to be closed.
+	 */
+	private boolean deliverFrame(ByteBuffer buffer, int flags, int length, Connection connection, SocketChannel channel) {
+		if ((flags & PointToPointQueueSenderEndGathering.FRAGMENT) == 0) {
+			E object = decode(buffer, length, channel);
+			if (object != null) {
+				deliver(object);
+			}
+			return true;
+		}
+		if (length < 12) {
+			System.err.println("Fragment too short on " + channel);
+			return true;
+		}
+		int id = buffer.getInt();
+		int offset = buffer.getInt();
+		int total = buffer.getInt();
+		int size = length - 12;
+		Fragments fragments = connection.fragments.get(id);
+		if (fragments == null) {
+			if (total < 4) {
+				System.err.println("Bad fragment on " + channel);
+				return true;
+			}
+			if (total - 4 > maxFrameBytes) {
+				System.err.println("Fragmented frame of " + (total - 4) + " bytes too large on " + channel);
+				return false;
+			}
+			fragments = new Fragments(total);
+			connection.fragments.put(id, fragments);
+		}
+		if (total != fragments.frame.length || offset != fragments.received || size > total - offset) {
+			System.err.println("Bad fragment on " + channel);
+			connection.fragments.remove(id);
+			return false;
+		}
+		buffer.get(fragments.frame, offset, size);
+		fragments.received += size;
+		if (fragments.received < total) {
+			return true;
+		}
+		connection.fragments.remove(id);
+		ByteBuffer frame = ByteBuffer.wrap(fragments.frame);
+		int frameLength = frame.getInt();
+		if (frameLength != total - 4) {
+			System.err.println("Bad fragmented frame on " + channel);
+			return true;
+		}
+		E object = decode(frame, frameLength, channel);
+		if (object != null) {
+			deliver(object);
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes the object in the frame at the position of the buffer. May
+	 * move the position, leaves the limit.
+	 *
+	 * @return The object, null if it could not be read.
+	 */
+	private E decode(ByteBuffer buffer, int length, SocketChannel channel) {
+		frame.point(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		int limit = buffer.limit();
+		try {
+			if (gatheringCodec != null) {
+				buffer.limit(buffer.position() + length);
+				return gatheringCodec.decode(forDecoding, buffer);
+			}
+			return codec.decode(forDecoding);
+		} catch (ClassCastException e) {
+			System.err.println("The peer sent object of unknown type on " + channel);
+			System.err.println(e);
+		} catch (IOException e) {
+			System.err.println("Problems receiving object on " + channel);
+			System.err.println(e);
+		} finally {
+			buffer.limit(limit);
+		}
+		return null;
+	}
+
+	/**
+	 * Closes a connection, or the server channel, and forgets about it.
+	 *
+	 * @param key The key of the connection.
+	 */
+	private void closeConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ee) {
+			System.err.println(ee);
+		}
+	}
+
+	/**
+	 * What is read from one connection: the frames not yet complete, and
+	 * the objects whose fragments are not all there yet, by ID.
+	 */
+	private static class Connection {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final Map<Integer, Fragments> fragments = new HashMap<Integer, Fragments>();
+	}
+
+	/**
+	 * The frame of an object arriving in fragments.
+	 */
+	private static class Fragments {
+		final byte[] frame;
+		/*
+		 * The bytes of the frame there so far. The fragments arrive in
+		 * order, so these are the first ones, and the next fragment starts
+		 * here.
+		 */
+		int received;
+
+		Fragments(int length) {
+			frame = new byte[length];
+		}
+	}
+
+	/**
+	 * A ByteArrayInputStream which can be pointed at another frame, so one 
+	 * stream serves all frames of the receiving end.
+	 */
+	private static class FrameInputStream extends ByteArrayInputStream {
+
+		FrameInputStream() {
+			super(new byte[0]);
+		}
+
+		void point(byte[] bytes, int offset, int length) {
+			this.buf = bytes;
+			this.pos = offset;
+			this.count = offset + length;
+			this.mark = offset;
+		}
+	}
+}
@@ -1,4 +1,8 @@
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.io.*;
 import java.net.*;
 
@@ -16,7 +20,15 @@ import java.net.*;
 public class PointToPointQueueReceiverEndNonRobust<E extends Serializable> extends Thread implements PointToPointQueueReceiverEnd<E> {
 
 	PointToPointQueueReceiverEndNonRobust() {
-		this.pendingObjects = new ConcurrentLinkedQueue<E>();
+		this.pendingObjects = new MpscRingBuffer<E>(CAPACITY, MpscRingBuffer.WaitStrategy.PARK);
+	}
+
+	/**
+	 * 
+	 * @param waitStrategy How poll() waits for objects to arrive.
+	 */
+	public void setWaitStrategy(MpscRingBuffer.WaitStrategy waitStrategy) {
+		pendingObjects.setWaitStrategy(waitStrategy);
 	}
 
 	/**
@@ -37,51 +49,106 @@ public class PointToPointQueueReceiverEndNonRobust<E extends Serializable> exten
 	 * to shutdown() they will get a connection error.
 	 */
 	public void shutdown() {
-		synchronized (pendingObjects) {
-			shutdown = true;
-			pendingObjects.notifyAll();
-		}
+		shutdown = true;
+		pendingObjects.wakeUp();
+	}
+
+	public void setMetrics(Metrics metrics, String prefix) {
+		metrics.add(prefix + "messagesReceived", messagesReceived);
+		metrics.add(prefix + "bytesReceived", bytesReceived);
+		metrics.add(prefix + "pending", new Metrics.Gauge() {
+				public long value() {
+					return pendingObjects.size();
+				}
+			});
 	}
 		
 	/**
 	 * Will return the next object in this incoming queue. If the queue is empty, then 
 	 * the method blocks until incoming objects arrive. Removes the object from the queue.
 	 * If the queue is dead (shut down and has delivered all objects), then poll() will
-	 * return null.
+	 * return null. Must only be called by one thread at a time.
 	 * 
 	 * @return The front of the queue, null if the queue is dead.
 	 */
 	public E poll() {		
-		waitForObjectsToBePendingOrAShutdown();
-		synchronized (pendingObjects) {
-			if (pendingObjects.isEmpty()) {
-				return null;
-			} else {
-				return pendingObjects.poll();
-			}
+		E object;
+		while ((object = pendingObjects.poll()) == null && !shutdown) {
+			/* We will be woken up if an object arrives or the 
+			 * queue is shut down.
+			 */
+			pendingObjects.await();
+		}
+		return object;
+	}
+
+	public E poll(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		E object;
+		long left;
+		while ((object = pendingObjects.poll()) == null && !shutdown 
+				&& (left = deadline - System.nanoTime()) > 0) {
+			pendingObjects.await(left);
 		}
+		return object;
+	}
+
+	public E tryPoll() {
+		return pendingObjects.poll();
+	}
+
+	public int drainTo(Collection<? super E> objects, int max) {
+		int count = 0;
+		E object;
+		while (count < max && (object = pendingObjects.poll()) != null) {
+			objects.add(object);
+			count++;
+		}
+		return count;
 	}
 	
  	/**
- 	 * Starts a thread which waits for incoming objects and adds them to this queue,
- 	 * so they can be retrieved using poll(). Stops after shutdown() is called.
+ 	 * Starts a thread which waits for incoming connections and starts a reader
+ 	 * for each of them, which adds the incoming objects to this queue, so they 
+ 	 * can be retrieved using poll(). Stops after shutdown() is called.
  	 * 
  	 */
 	public void run() {
 		while (!shutdown) {
-			pullObject();
+			acceptConnection();
 		}
 		try {
 			serverSocket.close();
-		} catch (IOException _) {
+		} catch (IOException e) {
 			// IGNORE AND CLOSE
 		}
+		synchronized (openSockets) {
+			for (Socket socket : openSockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// IGNORE AND CLOSE
+				}
+			}
+			openSockets.clear();
+		}
 	}
 
 	/*
 	 * The queueu of received objects which were not yet delivered.
 	 */
-	final private ConcurrentLinkedQueue<E> pendingObjects; 
+	final private MpscRingBuffer<E> pendingObjects; 
+
+	/*
+	 * The received objects waiting for poll() before more go to the 
+	 * overflow of pendingObjects, so the readers never wait for poll().
+	 */
+	public static final int CAPACITY = 1 << 16;
+
+	/*
+	 * The connections currently being read from. Closed on shutdown.
+	 */
+	final private Set<Socket> openSockets = new HashSet<Socket>();
 
 	/*
 	 * The serverSocket on which this receiving end is listening for incoming
@@ -92,20 +159,29 @@ public class PointToPointQueueReceiverEndNonRobust<E extends Serializable> exten
 	/*
 	 * Used to signal that the queue should stop taking incoming messages.
 	 */
-	private boolean shutdown;
+	private volatile boolean shutdown;
+
+	/*
+	 * Counted as objects are delivered, and by the readers as bytes arrive.
+	 * Named by setMetrics().
+	 */
+	private final LongAdder messagesReceived = new LongAdder();
+	protected final LongAdder bytesReceived = new LongAdder();
 	
 	/**
-	 * Internal method for pulling an object from the sending end(s) of the queue.
+	 * Internal method for accepting a connection from a sending end of the 
+	 * queue. Each connection gets its own reader thread, so a sender may keep
+	 * its connection open and push many objects on it, while other senders 
+	 * connect at the same time.
 	 */
-	private void pullObject() {
+	private void acceptConnection() {
 		Socket socket = null;
-		ObjectInputStream forReceivingObjects = null;		
 		try {
 			serverSocket.setSoTimeout(1000); // To come back to live if listening after a shutdown
 			while (socket==null && !shutdown) {
 				try {
 					socket = serverSocket.accept();
-				} catch (SocketTimeoutException _) {
+				} catch (SocketTimeoutException e) {
 					// Ignore
 				}
 			}
@@ -118,44 +194,73 @@ public class PointToPointQueueReceiverEndNonRobust<E extends Serializable> exten
 		if (socket == null) {
 			return;
 		}
+		synchronized (openSockets) {
+			openSockets.add(socket);
+		}
+		final Socket connection = socket;
+		new Thread() {
+			public void run() {
+				pullObjects(connection);
+			}
+		}.start();
+	}
+
+	/**
+	 * Internal method for pulling objects from one connection until the 
+	 * sending end closes it, or the queue shuts down.
+	 * 
+	 * @param socket The connection to read from.
+	 */
+	private void pullObjects(Socket socket) {
+		ObjectInputStream forReceivingObjects = null;		
 		try {
-			forReceivingObjects = new ObjectInputStream(socket.getInputStream());			
+			forReceivingObjects = new ObjectInputStream(new CountingInputStream(socket.getInputStream(), bytesReceived));			
 		} catch (IOException e) {
 			System.err.println("Problems accepting incoming connections!");
 			System.err.println(e);
-			try {
-				socket.close();
-			} catch (IOException ee) {
-				System.err.println(ee);
-			}
+			closeConnection(socket);
 			return;
 		}
-		E object = null;
-		try {
-			Object incomingObject = forReceivingObjects.readObject();
-			object = (E)(incomingObject); 
-		} catch (ClassCastException e) {
-			System.err.println("The peer sent object of unknown type on " + socket);
-			System.err.println(e);
-			object = null;
-		} catch (IOException e) {
-			System.err.println("Problems receiving object on " + socket);
-			object = null;
-		} catch (ClassNotFoundException e) {
-			System.err.println("The peer sent object of unknown type on " + socket);
-			System.err.println(e);
-			object = null;
-		} 
-		if (object != null) {
-			synchronized (pendingObjects) {
-				pendingObjects.add(object);
-				pendingObjects.notify();
-			}
-		} 
+		while (!shutdown) {
+			E object = null;
+			try {
+				Object incomingObject = forReceivingObjects.readObject();
+				object = (E)(incomingObject); 
+			} catch (ClassCastException e) {
+				System.err.println("The peer sent object of unknown type on " + socket);
+				System.err.println(e);
+				break;
+			} catch (EOFException e) {
+				// The sending end closed the connection
+				break;
+			} catch (IOException e) {
+				if (!shutdown) {
+					System.err.println("Problems receiving object on " + socket);
+				}
+				break;
+			} catch (ClassNotFoundException e) {
+				System.err.println("The peer sent object of unknown type on " + socket);
+				System.err.println(e);
+				break;
+			} 
+			deliver(object);
+		}
 		try {
 			forReceivingObjects.close();
 		} catch (IOException ee) {
-			System.err.println(ee);
+			// Already closed by shutdown
+		}
+		closeConnection(socket);
+	}
+
+	/**
+	 * Closes a connection and forgets about it.
+	 * 
+	 * @param socket The connection to close.
+	 */
+	private void closeConnection(Socket socket) {
+		synchronized (openSockets) {
+			openSockets.remove(socket);
 		}
 		try {
 			socket.close();
@@ -165,27 +270,23 @@ public class PointToPointQueueReceiverEndNonRobust<E extends Serializable> exten
 	}
 
 	/**
-	 * Used by callers to wait for objects to enter the queue of pending
-	 * deliveries. When the method returns, then either the queue of pending
-	 * deliveries is non empty, or the queue is shutting down. Both might be 
-	 * the case.
+	 * Adds a received object to the queue of pending deliveries and wakes up
+	 * a caller waiting in poll(). Does not wait, so a reader serving several 
+	 * connections, as the selector thread of PointToPointQueueReceiverEndNio 
+	 * does, is never held up by poll().
+	 * 
+	 * @param object The received object.
+	 */
+	protected void deliver(E object) {
+		pendingObjects.put(object);
+		messagesReceived.increment();
+	}
+
+	/**
+	 * 
+	 * @return Whether shutdown() has been called.
 	 */
- 	private void waitForObjectsToBePendingOrAShutdown() {
- 		synchronized (pendingObjects) {
- 			while (pendingObjects.isEmpty() && !shutdown) {
- 				try {
- 					/* We will be woken up if an object arrives or the 
- 					 * queue is shut down.
- 					 */
- 					pendingObjects.wait();
- 				} catch (InterruptedException e) {
- 					/* Probably shutting down. The while condition will
- 					 * ensure proper behavior in case of some other 
- 					 * interruption.
- 					 */
- 				}
- 			}
- 			// Now: pendingObjects is non empty or we are shutting down
- 		}
- 	}
+	protected boolean isShutdown() {
+		return shutdown;
+	}
 }
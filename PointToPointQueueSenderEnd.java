@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -44,6 +45,52 @@ public interface PointToPointQueueSenderEnd<E extends Serializable> extends Runn
 	 * @return Whether all objects have been delivered to the receiving end.
 	 */
 	boolean isEmpty();
+
+	/**
+	 * Lets the end write up to maxCount pending objects, or about maxBytes,
+	 * at once, waiting up to linger for maxCount objects to be pending. 
+	 * Ends which cannot batch write one object at a time.
+	 * 
+	 * @param maxCount The most objects per write, 1 for no batching.
+	 * @param maxBytes The most bytes per write, exceeded only by the last object.
+	 * @param linger How long to wait for a full batch, 0 for not at all.
+	 * @param unit The unit of linger.
+	 */
+	public void setBatching(int maxCount, int maxBytes, long linger, TimeUnit unit);
+
+	/**
+	 * Compresses frames, or the frames of a batch together, of at least
+	 * minBytes, when it pays off, see FrameCompressor. Ends which do not 
+	 * write frames ignore this.
+	 * 
+	 * @param minBytes The least bytes worth compressing, 0 for no compression.
+	 */
+	public void setCompression(int minBytes);
+
+	/**
+	 * Sends objects larger than fragmentBytes in fragments, interleaved
+	 * with the objects put after them, so a large object does not hold up
+	 * everything behind it on the connection. An object may only overtake
+	 * a fragmented one if streams gives them different keys; objects with
+	 * a null key stay in order with all others. The receiving end puts the
+	 * fragments together again. Ends which do not write frames ignore this.
+	 * 
+	 * @param fragmentBytes The largest fragment, 0 for no fragmentation.
+	 * @param streams The key of each object, or null to keep all in order.
+	 */
+	public void setFragmentation(int fragmentBytes, KeyFunction<E> streams);
+
+	/**
+	 * Names the counters of this end in metrics: messagesSent, bytesSent,
+	 * pending, the connectTime, serializeTime, writeTime and batchSize
+	 * histograms, and those of its FrameCompressor if it has one, as far as
+	 * the end can tell them apart. The counters are kept whether or not
+	 * this is called.
+	 * 
+	 * @param metrics Where to add the counters.
+	 * @param prefix Put in front of each name, e.g. "link.3.".
+	 */
+	public void setMetrics(Metrics metrics, String prefix);
 	
  	/**
  	 * Starts the thread manager which pushes objects to the queue of the receiving end.
@@ -0,0 +1,109 @@
+import java.io.*;
+
+/**
+ *
+ * Sending end of a distributed queue of objects of class E which writes each
+ * object as a frame on a persistent connection: the length of the frame as a
+ * four byte int, followed by that many bytes holding the object as written by
+ * the Codec of the queue. The frames of a batch are gathered before they are
+ * written, so with setCompression() they are compressed together, see
+ * FrameCompressor. The frames can be read without blocking by a
+ * PointToPointQueueReceiverEndNio using the same Codec.
+ *
+ */
+
+public class PointToPointQueueSenderEndFramed<E extends Serializable> extends PointToPointQueueSenderEndPersistent<E> {
+
+	/*
+	 * Writes the objects into frames.
+	 */
+	private final Codec<E> codec;
+
+	/*
+	 * The stream on the open connection.
+	 */
+	private DataOutputStream forSendingFrames;
+
+	/*
+	 * Reused for the frames of each batch, so their lengths can be filled
+	 * in after the objects are encoded.
+	 */
+	private final FrameBuffer frames = new FrameBuffer();
+
+	/*
+	 * Used by the codec to write into frames.
+	 */
+	private final DataOutputStream forEncoding = new DataOutputStream(frames);
+
+	/*
+	 * Compresses the frames of a batch, if turned on.
+	 */
+	private final FrameCompressor compressor = new FrameCompressor();
+
+	/**
+	 * Creates a sending end writing the objects with Java's serialization.
+	 */
+	public PointToPointQueueSenderEndFramed() {
+		this(new SerializationCodec<E>());
+	}
+
+	/**
+	 *
+	 * @param codec Writes the objects into frames.
+	 */
+	public PointToPointQueueSenderEndFramed(Codec<E> codec) {
+		this.codec = codec;
+	}
+
+	public void setCompression(int minBytes) {
+		compressor.setMinBytes(minBytes);
+	}
+
+	public void setMetrics(Metrics metrics, String prefix) {
+		super.setMetrics(metrics, prefix);
+		compressor.setMetrics(metrics, prefix);
+	}
+
+	protected void startStream(OutputStream out) throws IOException {
+		forSendingFrames = new DataOutputStream(out);
+		frames.reset();
+	}
+
+	protected void writeObject(E object) throws IOException {
+		int start = frames.size();
+		forEncoding.writeInt(0); // The length, known below
+		codec.encode(object, forEncoding);
+		forEncoding.flush();
+		frames.putInt(start, frames.size() - start - 4);
+	}
+
+	protected void endBatch() throws IOException {
+		if (compressor.compress(frames.bytes(), 0, frames.size())) {
+			forSendingFrames.write(compressor.output(), 0, compressor.outputLength());
+		} else {
+			frames.writeTo(forSendingFrames);
+		}
+		frames.reset();
+	}
+
+	protected long bytesWritten() {
+		return super.bytesWritten() + frames.size();
+	}
+
+	/**
+	 * A ByteArrayOutputStream whose bytes can be changed and read in place.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+
+		byte[] bytes() {
+			return buf;
+		}
+
+		void putInt(int at, int value) {
+			buf[at] = (byte)(value >>> 24);
+			buf[at + 1] = (byte)(value >>> 16);
+			buf[at + 2] = (byte)(value >>> 8);
+			buf[at + 3] = (byte)value;
+		}
+	}
+}
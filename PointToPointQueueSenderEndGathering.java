@@ -0,0 +1,458 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Sending end writing the same frames as PointToPointQueueSenderEndFramed,
+ * but on a SocketChannel with one gathering write per frame: the length and
+ * head of the frame from a reused direct buffer, and the body, e.g. the
+ * bytes of a Payload, straight from where it is. The body is thus never
+ * copied on the Java side. The frames of a batch, see setBatching(), go in
+ * one gathering write, with the heads of frames without a body in between
+ * written as one buffer. With setCompression() the frames of a batch are
+ * compressed together instead, see FrameCompressor, and then copied once.
+ *
+ * With setFragmentation() a frame larger than the fragment size is sent as
+ * fragment frames: the length of the rest or'ed with FRAGMENT, an ID for
+ * the object, where the fragment starts in the frame and the length of the
+ * whole frame, each as four bytes, followed by that part of the frame.
+ * While other objects are pending, each write takes one fragment of each
+ * object being fragmented, in turn with the frames of the objects which
+ * may overtake them, so these wait for no more than a fragment of each.
+ * Else the fragments fill the write, up to the bytes of a batch.
+ *
+ * Read by a PointToPointQueueReceiverEndNio using the same codec.
+ *
+ */
+
+public class PointToPointQueueSenderEndGathering<E extends Serializable> extends PointToPointQueueSenderEndNonRobust<E> {
+
+	/**
+	 * Set in the length of a fragment frame.
+	 */
+	public static final int FRAGMENT = 1 << 30;
+
+	/*
+	 * The bytes in a fragment frame before the part of the frame.
+	 */
+	private static final int FRAGMENT_HEAD = 16;
+
+	/*
+	 * Writes the heads of the frames and hands out the bodies.
+	 */
+	private final GatheringCodec<E> codec;
+
+	/*
+	 * The open connection, null if not connected.
+	 */
+	private SocketChannel channel;
+
+	/*
+	 * The lengths and heads of the frames being written.
+	 */
+	private final ByteBufferOutputStream head = new ByteBufferOutputStream(1024);
+
+	/*
+	 * Used by the codec to write into head.
+	 */
+	private final DataOutputStream forEncoding = new DataOutputStream(head);
+
+	/*
+	 * What is being written: each entry is the bytes of head up to its end
+	 * in headEnds, followed by its body, null if none.
+	 */
+	private int[] headEnds = new int[1];
+	private ByteBuffer[] bodies = new ByteBuffer[1];
+	private int entryCount;
+
+	/*
+	 * The parts of head, and the bodies, in the order they are written.
+	 */
+	private ByteBuffer[] parts = new ByteBuffer[3];
+
+	/*
+	 * Compresses the frames of a batch, if turned on.
+	 */
+	private final FrameCompressor compressor = new FrameCompressor();
+
+	/*
+	 * See setFragmentation(). 0 if frames are not fragmented.
+	 */
+	private volatile int fragmentBytes;
+	private volatile KeyFunction<E> streams;
+
+	/*
+	 * The objects being sent in fragments, in the order they were taken.
+	 * Only used by the thread pushing the objects.
+	 */
+	private final List<Fragmented<E>> fragmented = new ArrayList<Fragmented<E>>();
+
+	/*
+	 * Whether fragmented is not empty, for other threads.
+	 */
+	private volatile boolean holding;
+
+	/*
+	 * The ID of the next object to fragment, and where to look for the
+	 * next fragment to send among those being fragmented.
+	 */
+	private int nextFragmentId;
+	private int turn;
+
+	/**
+	 * An object being sent in fragments: its frame, as the head copied out
+	 * of head and the body, and how much of it has been sent.
+	 */
+	private static class Fragmented<E> {
+		final E object;
+		final Object stream;
+		final int id;
+		final ByteBuffer head;
+		final ByteBuffer body;
+		final int length;
+		final int fragmentBytes;
+		int sent;
+
+		Fragmented(E object, Object stream, int id, ByteBuffer head, ByteBuffer body, int fragmentBytes) {
+			this.object = object;
+			this.stream = stream;
+			this.id = id;
+			this.head = head;
+			this.body = body;
+			this.length = head.remaining() + (body == null ? 0 : body.remaining());
+			this.fragmentBytes = fragmentBytes;
+		}
+	}
+
+	/**
+	 *
+	 * @param codec Writes the objects into frames.
+	 */
+	public PointToPointQueueSenderEndGathering(GatheringCodec<E> codec) {
+		this.codec = codec;
+	}
+
+	public void setCompression(int minBytes) {
+		compressor.setMinBytes(minBytes);
+	}
+
+	public void setFragmentation(int fragmentBytes, KeyFunction<E> streams) {
+		if (fragmentBytes < 0) {
+			throw new IllegalArgumentException("Bad fragment size " + fragmentBytes);
+		}
+		this.streams = streams;
+		this.fragmentBytes = fragmentBytes;
+	}
+
+	public void setMetrics(Metrics metrics, String prefix) {
+		super.setMetrics(metrics, prefix);
+		compressor.setMetrics(metrics, prefix);
+	}
+
+	protected boolean isHoldingObjects() {
+		return holding;
+	}
+
+	/**
+	 *
+	 * Writes one object as a frame on the open connection, connecting first
+	 * if needed. On failure the connection is closed, so the next call
+	 * reconnects.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param object The object to push.
+	 * @return whether the object was transfered to the receiver end of the queue
+	 */
+	protected boolean pushObject(InetSocketAddress receiverAddress, E object) {
+		return pushObjects(receiverAddress, Collections.singletonList(object), Integer.MAX_VALUE) == 1;
+	}
+
+	/**
+	 *
+	 * Writes objects as frames on the open connection, in one gathering
+	 * write, until maxBytes are reached, connecting first if needed. Large
+	 * objects are taken over to be sent in fragments, in turn with the
+	 * objects which may overtake them. On failure the connection is closed,
+	 * so the next call reconnects, and the objects being fragmented start
+	 * over.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param objects The objects to push.
+	 * @param maxBytes Stop after the object which reaches this many bytes.
+	 * @return how many objects, from the first, were transfered to the
+	 *         receiver end or taken over; -1 on failure
+	 */
+	protected int pushObjects(InetSocketAddress receiverAddress, List<E> objects, int maxBytes) {
+		if (channel == null && !connect(receiverAddress)) {
+			return -1;
+		}
+		int taken = 0;
+		int partCount = 0;
+		int fragmentedBefore = fragmented.size();
+		entryCount = 0;
+		try {
+			long start = System.nanoTime();
+			long length = 0;
+			head.reset();
+			/*
+			 * At most one fragment of each object per write while other
+			 * objects are pending, so they wait for no more than that.
+			 * Else the fragments fill the write.
+			 */
+			int fragments = objects.isEmpty() ? Integer.MIN_VALUE : 0;
+			boolean more = true;
+			while (more && length < maxBytes) {
+				more = false;
+				if (taken < objects.size() && mayOvertake(objects.get(taken))) {
+					length += addFrame(objects.get(taken++));
+					more = true;
+				}
+				Fragmented<E> next = length < maxBytes && fragments < fragmented.size() ? nextToFragment() : null;
+				if (next != null) {
+					length += addFragment(next);
+					fragments++;
+					more = true;
+				}
+			}
+			/*
+			 * The buffer of head may have moved while encoding, so it is
+			 * only cut into parts now.
+			 */
+			ByteBuffer heads = head.toBuffer();
+			if (parts.length < 2 * entryCount + 1) {
+				parts = new ByteBuffer[2 * entryCount + 1];
+			}
+			int partStart = 0;
+			for (int i = 0; i < entryCount; i++) {
+				if (bodies[i] == null || !bodies[i].hasRemaining()) {
+					continue;
+				}
+				if (partStart < headEnds[i]) {
+					parts[partCount++] = part(heads, partStart, headEnds[i]);
+				}
+				parts[partCount++] = bodies[i];
+				partStart = headEnds[i];
+			}
+			if (partStart < heads.limit()) {
+				parts[partCount++] = part(heads, partStart, heads.limit());
+			}
+			if (compressor.compress(parts, partCount, (int)length)) {
+				Arrays.fill(parts, 0, partCount, null);
+				parts[0] = ByteBuffer.wrap(compressor.output(), 0, compressor.outputLength());
+				partCount = 1;
+				length = compressor.outputLength();
+			}
+			serializeTime.recordSince(start);
+			start = System.nanoTime();
+			long left = length;
+			while (left > 0) {
+				left -= channel.write(parts, 0, partCount);
+			}
+			writeTime.recordSince(start);
+			bytesSent.add(length);
+		} catch (IOException e) {
+			System.err.println("Could not push object to host " + receiverAddress);
+			System.err.println(e);
+			disconnect();
+			startFragmentsOver(fragmentedBefore);
+			return -1;
+		} finally {
+			Arrays.fill(bodies, 0, entryCount, null);
+			Arrays.fill(parts, 0, partCount, null);
+		}
+		for (int i = fragmented.size() - 1; i >= 0; i--) {
+			Fragmented<E> done = fragmented.get(i);
+			if (done.sent == done.length) {
+				fragmented.remove(i);
+				written(done.object);
+			}
+		}
+		holding = !fragmented.isEmpty();
+		return taken;
+	}
+
+	/**
+	 * Adds the frame of an object to what is written, or takes the object
+	 * over to send it in fragments if it is too large.
+	 *
+	 * @return The bytes added.
+	 */
+	private int addFrame(E object) throws IOException {
+		int headStart = head.size();
+		forEncoding.writeInt(0); // The length, known below
+		ByteBuffer body = codec.encodeHead(object, forEncoding);
+		forEncoding.flush();
+		int length = head.size() - headStart + (body == null ? 0 : body.remaining());
+		head.putInt(headStart, length - 4);
+		int most = fragmentBytes;
+		if (most > 0 && length > most) {
+			fragmented.add(new Fragmented<E>(object, streamOf(object), nextFragmentId++, head.copy(headStart, head.size()), body, most));
+			head.truncate(headStart);
+			// Released by written() once the last fragment is sent
+			if (object instanceof ReferenceCounted) {
+				((ReferenceCounted)object).retain();
+			}
+			holding = true;
+			return 0;
+		}
+		addEntry(body);
+		return length;
+	}
+
+	/**
+	 * Adds the next fragment of an object to what is written.
+	 *
+	 * @return The bytes added.
+	 */
+	private int addFragment(Fragmented<E> object) throws IOException {
+		int size = Math.min(object.fragmentBytes, object.length - object.sent);
+		forEncoding.writeInt((FRAGMENT_HEAD - 4 + size) | FRAGMENT);
+		forEncoding.writeInt(object.id);
+		forEncoding.writeInt(object.sent);
+		forEncoding.writeInt(object.length);
+		forEncoding.flush();
+		int end = object.sent + size;
+		int headLength = object.head.remaining();
+		if (object.sent < headLength) {
+			addEntry(part(object.head, object.sent, Math.min(end, headLength)));
+		}
+		if (end > headLength) {
+			int bodyStart = object.body.position() - headLength;
+			addEntry(part(object.body, bodyStart + Math.max(object.sent, headLength), bodyStart + end));
+		}
+		object.sent = end;
+		return FRAGMENT_HEAD + size;
+	}
+
+	private void addEntry(ByteBuffer body) {
+		if (entryCount == headEnds.length) {
+			headEnds = Arrays.copyOf(headEnds, 2 * entryCount);
+			bodies = Arrays.copyOf(bodies, 2 * entryCount);
+		}
+		headEnds[entryCount] = head.size();
+		bodies[entryCount] = body;
+		entryCount++;
+	}
+
+	/**
+	 *
+	 * @return The next object being fragmented which has fragments left,
+	 *         taking turns, or null if none.
+	 */
+	private Fragmented<E> nextToFragment() {
+		for (int i = 0; i < fragmented.size(); i++) {
+			int at = (turn + i) % fragmented.size();
+			Fragmented<E> object = fragmented.get(at);
+			if (object.sent < object.length) {
+				turn = at + 1;
+				return object;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return Whether the object may be written before the objects being
+	 *         fragmented are done.
+	 */
+	private boolean mayOvertake(E object) {
+		if (fragmented.isEmpty()) {
+			return true;
+		}
+		Object stream = streamOf(object);
+		if (stream == null) {
+			return false;
+		}
+		for (Fragmented<E> other : fragmented) {
+			if (other.stream == null || other.stream.equals(stream)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Object streamOf(E object) {
+		KeyFunction<E> streams = this.streams;
+		return streams == null ? null : streams.keyOf(object);
+	}
+
+	/**
+	 * After a failed write, forgets the objects taken over by it, as they
+	 * are still pending, and sends the others from the start again, as the
+	 * receiving end drops the fragments of a broken connection.
+	 */
+	private void startFragmentsOver(int taken) {
+		while (fragmented.size() > taken) {
+			Fragmented<E> forgotten = fragmented.remove(fragmented.size() - 1);
+			if (forgotten.object instanceof ReferenceCounted) {
+				((ReferenceCounted)forgotten.object).release();
+			}
+		}
+		for (Fragmented<E> object : fragmented) {
+			object.sent = 0;
+		}
+		holding = !fragmented.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return A view of the bytes of buffer from start to end.
+	 */
+	private static ByteBuffer part(ByteBuffer buffer, int start, int end) {
+		ByteBuffer part = buffer.duplicate();
+		part.position(start);
+		part.limit(end);
+		return part;
+	}
+
+	/**
+	 * Opens the connection to the receiving end.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @return whether the connection was opened.
+	 */
+	private boolean connect(InetSocketAddress receiverAddress) {
+		long start = System.nanoTime();
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(receiverAddress.getAddress(), receiverAddress.getPort()));
+			channel.socket().setTcpNoDelay(true);
+			connectTime.recordSince(start);
+		} catch (IOException e) {
+			System.err.println("Problems opening socket to " + receiverAddress);
+			System.err.println(e);
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection to the receiving end, if any.
+	 */
+	private void disconnect() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Starts a thread which pushes objects in this queue to the receiver side.
+	 * Closes the connection when the queue has shut down.
+	 */
+	public void run() {
+		super.run();
+		disconnect();
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Sending end of a queue whose receiving end is in the same JVM, see 
+ * LocalTransport. Once the receiving end is found, put() adds each object to 
+ * it directly on the calling thread, so the only handoff is the one to the 
+ * thread polling the receiving end. Objects put before the receiving end 
+ * is registered wait in this queue and are pushed by its thread, as for the 
+ * other sending ends. An object which cannot be copied is dropped and 
+ * reported, as it would fail again.
+ *
+ */
+
+public class PointToPointQueueSenderEndLocal<E extends Serializable> extends PointToPointQueueSenderEndNonRobust<E> {
+
+	/*
+	 * How long the thread waits before looking for a missing receiving end 
+	 * again.
+	 */
+	private static final long RETRY_INTERVAL = 10;
+
+	/*
+	 * Copies the objects, null to hand over the objects themselves.
+	 */
+	private final Codec<E> codec;
+
+	private volatile InetSocketAddress receiverAddress;
+
+	/*
+	 * The receiving end, once found.
+	 */
+	private volatile PointToPointQueueReceiverEndLocal<E> receiver;
+
+	/*
+	 * Used for copying, reset for each object.
+	 */
+	private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+	private final DataOutputStream forEncoding = new DataOutputStream(copy);
+
+	/*
+	 * The objects dropped as they could not be copied.
+	 */
+	private final LongAdder messagesDropped = new LongAdder();
+
+	/**
+	 * 
+	 * @param codec Copies the objects, null to hand over the objects themselves.
+	 */
+	public PointToPointQueueSenderEndLocal(Codec<E> codec) {
+		this.codec = codec;
+	}
+
+	public void setReceiver(InetSocketAddress serverAddress) {
+		if (receiverAddress == null && serverAddress != null) {
+			receiverAddress = serverAddress;
+		}
+		super.setReceiver(serverAddress);
+	}
+
+	/**
+	 * 
+	 * Adds the object to the receiving end at once, unless it has not been 
+	 * found yet or earlier objects are still waiting for it.
+	 * 
+	 * @param object The message to be added to the queue.
+	 */
+	public void put(E object) {
+		if (object == null) {
+			throw new NullPointerException("Cannot send null's");
+		}
+		PointToPointQueueReceiverEndLocal<E> to = findReceiver();
+		if (to == null || !isEmpty()) {
+			super.put(object);
+		} else if (handOver(to, object)) {
+			messagesSent.increment();
+		}
+	}
+
+	public void setMetrics(Metrics metrics, String prefix) {
+		super.setMetrics(metrics, prefix);
+		metrics.add(prefix + "messagesDropped", messagesDropped);
+	}
+
+	/**
+	 * Used by the thread of this queue for objects put before the receiving 
+	 * end was found.
+	 */
+	protected boolean pushObject(InetSocketAddress receiverAddress, E object) {
+		PointToPointQueueReceiverEndLocal<E> to = findReceiver();
+		if (to != null) {
+			handOver(to, object);
+			return true;
+		}
+		try {
+			Thread.sleep(RETRY_INTERVAL);
+		} catch (InterruptedException e) {
+			// Try again
+		}
+		return false;
+	}
+
+	private PointToPointQueueReceiverEndLocal<E> findReceiver() {
+		PointToPointQueueReceiverEndLocal<E> to = receiver;
+		if ((to == null || to.isShutdown()) && receiverAddress != null) {
+			to = PointToPointQueueReceiverEndLocal.lookup(receiverAddress.getPort());
+			receiver = to;
+		}
+		return to;
+	}
+
+	/**
+	 * 
+	 * Hands over the object, or a copy of it. An object which cannot be 
+	 * copied is dropped and released.
+	 * 
+	 * @return Whether the object was handed over rather than dropped.
+	 */
+	private boolean handOver(PointToPointQueueReceiverEndLocal<E> to, E object) {
+		if (codec != null) {
+			E original = object;
+			try {
+				object = copyOf(object);
+			} catch (IOException e) {
+				System.err.println("Dropping object which could not be copied for " + receiverAddress);
+				System.err.println(e);
+				object = null;
+			}
+			if (original instanceof ReferenceCounted) {
+				((ReferenceCounted)original).release();
+			}
+			if (object == null) {
+				messagesDropped.increment();
+				return false;
+			}
+		}
+		to.deliver(object);
+		return true;
+	}
+
+	/**
+	 * Without a codec the receiving end has the object itself, with one
+	 * handOver() has released it already.
+	 */
+	protected void written(E object) {
+	}
+
+	private synchronized E copyOf(E object) throws IOException {
+		long start = System.nanoTime();
+		copy.reset();
+		codec.encode(object, forEncoding);
+		forEncoding.flush();
+		serializeTime.recordSince(start);
+		bytesSent.add(copy.size());
+		return codec.decode(new DataInputStream(
+				new ByteArrayInputStream(copy.toByteArray())));
+	}
+}
@@ -1,203 +1,392 @@
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.io.*;
-import java.net.*;
-
-/**
- *
- * Non-robust implementation of the sending end of a distributed queue of objects 
- * of class E. The class E must be Serializable, as the objects are moved using 
- * ObjectOutputStream and ObjectInputStream. The receiver end is implemented in 
- * ObjectQueueReceiverEnd.
- * 
- * @author Jesper Buus Nielsen, Aarhus University, 2011.
- *
- */
-
-public class PointToPointQueueSenderEndNonRobust<E extends Serializable> extends Thread implements PointToPointQueueSenderEnd<E>  {
-
-	/**
-	 * 
-	 * @param serverAddress The IP address and port of the receiver
-	 */
-	public PointToPointQueueSenderEndNonRobust() {
-		this.pendingObjects = new ConcurrentLinkedQueue<E>();
-	}
-
-	/**
-	 * 
-	 * @param serverAddress The IP address and port of the receiver end.
-	 */
-	public void setReceiver(InetSocketAddress serverAddress) {
-		if (this.receiverAddress==null && serverAddress!=null) {
-			this.receiverAddress = serverAddress;
-			this.start();
-		}
-	}
-	
-	/**
-	 * 
-	 * Puts a message in this queue. The call is asynchronous, i.e., it returns 
-	 * immediately. In particular, it returns before the object is delivered at
-	 * the receiver end. The manager of the queue will later take care of moving 
-	 * the object to the receiving side. 
-	 * 
-	 * @param object The message to be added to the queue.
-	 */
-	public void put(E object) {
-		if (object == null) {
-			throw new NullPointerException("Cannot send null's");
-		}
-		synchronized(pendingObjects) {
-			boolean wasEmpty = pendingObjects.isEmpty();
-			pendingObjects.add(object);	
-			if (wasEmpty) {
-				// We wake up the manager if it waits for a new message to send.
-				pendingObjects.notify();
-			}
-		}
-	}
-
-	/**
-	 * Shuts down the queue. After this no more messages can be added to the
-	 * queue at the sending end. The queue will try to deliver the objects
-	 * already scheduled for delivery, but will terminate on the first failed
-	 * attempt. The safe way to use shutdown() is therefore to call it only
-	 * when no objects are pending!
-	 */
-	public void shutdown() {
-		synchronized (pendingObjects) {
-			shutdown = true;
-			pendingObjects.notifyAll();
-		}
-	}
-
-	/**
-	 * 
-	 * @return Whether all messages have been delivered.
-	 */
-	public boolean isEmpty() {
-		synchronized (pendingObjects) {
-			return pendingObjects.isEmpty();
-		}
-	}
-	
-	/*
-	 * The address of the receiving end of the queue.
-	 */
-	private InetSocketAddress receiverAddress;
-	
-	/*
-	 * The objects not yet delivered.
-	 */
-	final private ConcurrentLinkedQueue<E> pendingObjects; 
-	
-	/*
-	 * Used to signal that the queue should shut down.
-	 */
-	private boolean shutdown = false;
-
-	/**
-	 * 
-	 * Takes the next pending message and tries to move it to the queue of the
-	 * receiving end. This is an extremely inefficient implementation as it
-	 * opens a new connection for each object to be sent! This, however, is 
-	 * also a simple way to get some rudimentary robustness: a dropped connection,
-	 * or other IOException, is handled simply by calling pushOneObject again. 
-	 * Should only be called if there are objects to be sent.
-	 * 
-	 * @return whether an object was transfered to the receiver end of the queue
-	 */
-	private boolean pushOneObject() {
-		if (receiverAddress==null) {
-			return false;
-		}
-		E object = pendingObjects.peek();
-		if (object == null) {
-			return false;
-		}
-		Socket socket = null;
-		ObjectOutputStream forSendingObjects = null;		
-		try {
-			socket = new Socket(receiverAddress.getAddress(),receiverAddress.getPort());
-			forSendingObjects = new ObjectOutputStream(socket.getOutputStream());
-		} catch (UnknownHostException e) {
-			System.err.println("Problems looking up " + receiverAddress);
-			System.err.println(e);
-			return false;
-		} catch (IOException e) {
-			System.err.println("Problems opening socket to " + receiverAddress);
-			System.err.println(e);
-			return false;
-		}
-		try {
-			forSendingObjects.writeObject(object); 
-		} catch (IOException e) {
-			System.err.println("Could not push object to host " + receiverAddress);
-			System.err.println(e);
-			return false;
-		} finally {
-			try {
-				forSendingObjects.close();
-				socket.close();
-			} catch (IOException e) {
-				System.err.println(e);
-			}
-		}
-		/* When we make it here the object was pushed to the other side, 
-		 * so we can remove it from the queue of pending pushes.
-		 */
-		pendingObjects.poll();
-		return true;
-	}
-
-	/**
-	 * Internal method for waiting until one or more objects are
-	 * pending to be pushed. 
-	 */
- 	private void waitForObjectsToBePendingOrShutdown() {
- 		synchronized (pendingObjects) {
- 			while (pendingObjects.isEmpty() && !shutdown) {
- 				try {
- 					/*
- 					 * The put method will wake us up if messages arrive.
- 					 * The shutdown method will wake us up if we are to shut down.
- 					 */
- 					pendingObjects.wait();
- 				} catch (InterruptedException e) {
- 					// Ignore. The while condition ensures proper behavior in case of interrupts.
- 				}
- 			}
- 			// Now objects are pending send or we are shutting down
- 		}
- 	}
-	
- 	/**
- 	 * Starts a thread which pushes objects in this queue to the receiver side.
- 	 */
-	public void run() {
-
-		while (!shutdown) {
-			waitForObjectsToBePendingOrShutdown(); 
-			if (!shutdown) {
-				/*
-				 * We might have come out of waitForObjectsToBePendingOrShutdown() 
-				 * because of a shutdown. If not, then a message is ready to be sent.
-				 */
-				pushOneObject();
-			}
-		}
-		
-		/*
-		 * We are shutting down. Will try to send the remaining messages.
-		 * However, on the first delivery error, I will terminate. Here we go.
-		 */
-		boolean allOkSoFar = true;
-		while (!pendingObjects.isEmpty() && allOkSoFar) {
-			allOkSoFar = pushOneObject();
-		}
-
-		if (!pendingObjects.isEmpty()) {
-			System.err.println("Warning: PointToPointQueueSendingEnd shutting down with " + pendingObjects.size() + " pending messages.");
-		}
-	}
-}
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Non-robust implementation of the sending end of a distributed queue of objects 
+ * of class E. The class E must be Serializable, as the objects are moved using 
+ * ObjectOutputStream and ObjectInputStream. The receiver end is implemented in 
+ * ObjectQueueReceiverEnd.
+ * 
+ * @author Jesper Buus Nielsen, Aarhus University, 2011.
+ *
+ */
+
+public class PointToPointQueueSenderEndNonRobust<E extends Serializable> extends Thread implements PointToPointQueueSenderEnd<E>  {
+
+	/**
+	 * 
+	 * @param serverAddress The IP address and port of the receiver
+	 */
+	public PointToPointQueueSenderEndNonRobust() {
+		this.pendingObjects = new MpscRingBuffer<E>(CAPACITY, MpscRingBuffer.WaitStrategy.PARK);
+	}
+
+	/**
+	 * 
+	 * @param waitStrategy How the sending thread waits for objects to be put.
+	 */
+	public void setWaitStrategy(MpscRingBuffer.WaitStrategy waitStrategy) {
+		pendingObjects.setWaitStrategy(waitStrategy);
+	}
+
+	/**
+	 * 
+	 * Lets the thread pushing the objects write up to maxCount pending 
+	 * objects, or about maxBytes of them, at once, e.g., in one flush of the 
+	 * connection, instead of one object per write. With a linger time it 
+	 * waits up to that long for maxCount objects to be pending before 
+	 * writing, as Nagle's algorithm does, trading a little latency for fewer 
+	 * and larger writes when the load is bursty. The default is one object 
+	 * per write and no linger. Ends which cannot write several objects at 
+	 * once push them one at a time, whatever this is set to. May be called 
+	 * at any time.
+	 * 
+	 * @param maxCount The most objects per write.
+	 * @param maxBytes A write ends with the object which reaches this many 
+	 *                 bytes, so one larger object is still written whole.
+	 * @param linger How long to wait for a full batch, 0 to write what is 
+	 *               pending at once.
+	 * @param unit The unit of linger.
+	 */
+	public void setBatching(int maxCount, int maxBytes, long linger, TimeUnit unit) {
+		if (maxCount <= 0 || maxBytes <= 0 || linger < 0) {
+			throw new IllegalArgumentException("Bad batching " + maxCount + ", " + maxBytes + ", " + linger);
+		}
+		maxBatchCount = maxCount;
+		maxBatchBytes = maxBytes;
+		lingerNanos = unit.toNanos(linger);
+	}
+
+	/**
+	 * 
+	 * Ignored, as this end does not write frames. Subclasses which do 
+	 * override this.
+	 * 
+	 * @param minBytes Compress frames of at least this many bytes, 0 for none.
+	 */
+	public void setCompression(int minBytes) {
+	}
+
+	/**
+	 * 
+	 * Ignored, as this end does not write frames. Subclasses which do 
+	 * override this.
+	 * 
+	 * @param fragmentBytes Send larger frames in fragments of this size, 0 
+	 *                      for none.
+	 * @param streams Which objects may overtake a fragmented one.
+	 */
+	public void setFragmentation(int fragmentBytes, KeyFunction<E> streams) {
+	}
+
+	/**
+	 * 
+	 * @param serverAddress The IP address and port of the receiver end.
+	 */
+	public void setReceiver(InetSocketAddress serverAddress) {
+		if (this.receiverAddress==null && serverAddress!=null) {
+			this.receiverAddress = serverAddress;
+			this.start();
+		}
+	}
+	
+	/**
+	 * 
+	 * Puts a message in this queue. The call is asynchronous, i.e., it returns 
+	 * immediately. In particular, it returns before the object is delivered at
+	 * the receiver end. The manager of the queue will later take care of moving 
+	 * the object to the receiving side. It does not wait even when CAPACITY 
+	 * objects are pending, so a peer passing messages on around the ring is 
+	 * never held up by the next one; see setFlowControl() of 
+	 * MulticastQueueImpl for bounding what the application puts.
+	 * 
+	 * @param object The message to be added to the queue.
+	 */
+	public void put(E object) {
+		if (object == null) {
+			throw new NullPointerException("Cannot send null's");
+		}
+		// Wakes up the manager if it waits for a new message to send.
+		pendingObjects.put(object);
+	}
+
+	/**
+	 * Shuts down the queue. After this no more messages can be added to the
+	 * queue at the sending end. The queue will try to deliver the objects
+	 * already scheduled for delivery, but will terminate on the first failed
+	 * attempt. The safe way to use shutdown() is therefore to call it only
+	 * when no objects are pending!
+	 */
+	public void shutdown() {
+		shutdown = true;
+		pendingObjects.wakeUp();
+	}
+
+	/**
+	 * 
+	 * @return Whether all messages have been delivered.
+	 */
+	public boolean isEmpty() {
+		return pendingObjects.isEmpty() && !isHoldingObjects();
+	}
+
+	public void setMetrics(Metrics metrics, String prefix) {
+		metrics.add(prefix + "messagesSent", messagesSent);
+		metrics.add(prefix + "bytesSent", bytesSent);
+		metrics.add(prefix + "connectTime", connectTime);
+		metrics.add(prefix + "serializeTime", serializeTime);
+		metrics.add(prefix + "writeTime", writeTime);
+		metrics.add(prefix + "batchSize", batchSize);
+		metrics.add(prefix + "pending", new Metrics.Gauge() {
+				public long value() {
+					return pendingObjects.size();
+				}
+			});
+	}
+	
+	/*
+	 * The address of the receiving end of the queue.
+	 */
+	private InetSocketAddress receiverAddress;
+	
+	/*
+	 * The objects pending before more go to the overflow of pendingObjects.
+	 */
+	public static final int CAPACITY = 1 << 16;
+
+	/*
+	 * The objects not yet delivered. Put by any thread, pushed by this one.
+	 */
+	final private MpscRingBuffer<E> pendingObjects; 
+	
+	/*
+	 * Used to signal that the queue should shut down.
+	 */
+	private volatile boolean shutdown = false;
+
+	/*
+	 * Bounds on the objects written at once, see setBatching().
+	 */
+	private volatile int maxBatchCount = 1;
+	private volatile int maxBatchBytes = 1 << 16;
+	private volatile long lingerNanos = 0;
+
+	/*
+	 * The objects being pushed. Only used by the thread pushing them.
+	 */
+	private final List<E> batch = new ArrayList<E>();
+
+	/*
+	 * Counted by the thread pushing the objects, and by subclasses as they
+	 * connect, serialize and write. Named by setMetrics().
+	 */
+	protected final LongAdder messagesSent = new LongAdder();
+	protected final LongAdder bytesSent = new LongAdder();
+	protected final Histogram connectTime = new Histogram();
+	protected final Histogram serializeTime = new Histogram();
+	protected final Histogram writeTime = new Histogram();
+
+	/*
+	 * The number of objects per write. Not a duration, but the buckets 
+	 * serve as well.
+	 */
+	private final Histogram batchSize = new Histogram();
+
+	/**
+	 * 
+	 * Takes the next pending messages, as many as setBatching() allows, and 
+	 * tries to move them to the queue of the receiving end, using 
+	 * pushObjects(). Should only be called if there are objects to be sent,
+	 * or held by a subclass.
+	 * 
+	 * @return whether the write succeeded
+	 */
+	private boolean pushPendingObjects() {
+		if (receiverAddress==null) {
+			return false;
+		}
+		int maxCount = maxBatchCount;
+		for (int i = 0; i < maxCount; i++) {
+			E object = pendingObjects.peek(i);
+			if (object == null) {
+				break;
+			}
+			batch.add(object);
+		}
+		if (batch.isEmpty() && !isHoldingObjects()) {
+			return false;
+		}
+		int pushed = pushObjects(receiverAddress, batch, maxBatchBytes);
+		/* The first pushed objects made it to the other side, or are held
+		 * by the subclass, so we can remove them from the queue of pending
+		 * pushes.
+		 */
+		for (int i = 0; i < pushed; i++) {
+			pendingObjects.poll();
+			written(batch.get(i));
+		}
+		batch.clear();
+		if (pushed > 0) {
+			messagesSent.add(pushed);
+			batchSize.record(pushed);
+		}
+		return pushed >= 0;
+	}
+
+	/**
+	 * 
+	 * Moves objects to the receiving end, from the first of the given ones, 
+	 * in one write if the end can. This implementation pushes only the first 
+	 * object, using pushObject(). Subclasses able to write several objects 
+	 * at once override this.
+	 * 
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param objects The objects to push, at least one unless the subclass
+	 *                is holding objects.
+	 * @param maxBytes Stop after the object which reaches this many bytes.
+	 * @return how many objects, from the first, were transfered to the 
+	 *         receiver end, or taken over by the subclass; -1 on failure, 
+	 *         and then all are tried again
+	 */
+	protected int pushObjects(InetSocketAddress receiverAddress, List<E> objects, int maxBytes) {
+		return pushObject(receiverAddress, objects.get(0)) ? 1 : -1;
+	}
+
+	/**
+	 * 
+	 * @return Whether the subclass holds objects taken by pushObjects() 
+	 *         which are not yet transfered, e.g. while they are sent in 
+	 *         fragments. They are then pushed on by calling pushObjects() 
+	 *         until they are done, also when no objects are pending. The 
+	 *         subclass must retain those which are ReferenceCounted, as 
+	 *         written() is called when they are taken. Called from any 
+	 *         thread.
+	 */
+	protected boolean isHoldingObjects() {
+		return false;
+	}
+
+	/**
+	 * Called when an object has been pushed. Releases the object if it is
+	 * ReferenceCounted, as the receiving end has its own copy. Subclasses
+	 * handing over the object itself override this.
+	 * 
+	 * @param object The object pushed.
+	 */
+	protected void written(E object) {
+		if (object instanceof ReferenceCounted) {
+			((ReferenceCounted)object).release();
+		}
+	}
+
+	/**
+	 * 
+	 * Moves one object to the receiving end. This is an extremely inefficient 
+	 * implementation as it opens a new connection for each object to be sent! 
+	 * This, however, is also a simple way to get some rudimentary robustness: 
+	 * a dropped connection, or other IOException, is handled simply by pushing 
+	 * the object again. Subclasses may override this to reuse connections.
+	 * 
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param object The object to push.
+	 * @return whether the object was transfered to the receiver end of the queue
+	 */
+	protected boolean pushObject(InetSocketAddress receiverAddress, E object) {
+		Socket socket = null;
+		ObjectOutputStream forSendingObjects = null;		
+		long start = System.nanoTime();
+		try {
+			socket = new Socket(receiverAddress.getAddress(),receiverAddress.getPort());
+			forSendingObjects = new ObjectOutputStream(new CountingOutputStream(socket.getOutputStream(), bytesSent));
+			connectTime.recordSince(start);
+		} catch (UnknownHostException e) {
+			System.err.println("Problems looking up " + receiverAddress);
+			System.err.println(e);
+			return false;
+		} catch (IOException e) {
+			System.err.println("Problems opening socket to " + receiverAddress);
+			System.err.println(e);
+			return false;
+		}
+		try {
+			start = System.nanoTime();
+			forSendingObjects.writeObject(object); 
+			writeTime.recordSince(start);
+		} catch (IOException e) {
+			System.err.println("Could not push object to host " + receiverAddress);
+			System.err.println(e);
+			return false;
+		} finally {
+			try {
+				forSendingObjects.close();
+				socket.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Internal method for waiting until one or more objects are
+	 * pending to be pushed. 
+	 */
+ 	private void waitForObjectsToBePendingOrShutdown() {
+ 		while (pendingObjects.isEmpty() && !isHoldingObjects() && !shutdown) {
+ 			/*
+ 			 * The put method will wake us up if messages arrive.
+ 			 * The shutdown method will wake us up if we are to shut down.
+ 			 */
+ 			pendingObjects.await();
+ 		}
+ 		// Now objects are pending send or we are shutting down
+ 	}
+
+	/**
+	 * Waits up to the linger time for a full batch to be pending, see 
+	 * setBatching().
+	 */
+	private void lingerForBatch() {
+		long linger = lingerNanos;
+		int maxCount = maxBatchCount;
+		if (linger > 0 && pendingObjects.size() < maxCount && !isHoldingObjects()) {
+			pendingObjects.await(maxCount, linger);
+		}
+	}
+	
+ 	/**
+ 	 * Starts a thread which pushes objects in this queue to the receiver side.
+ 	 */
+	public void run() {
+
+		while (!shutdown) {
+			waitForObjectsToBePendingOrShutdown(); 
+			if (!shutdown) {
+				/*
+				 * We might have come out of waitForObjectsToBePendingOrShutdown() 
+				 * because of a shutdown. If not, then a message is ready to be sent.
+				 */
+				lingerForBatch();
+				pushPendingObjects();
+			}
+		}
+		
+		/*
+		 * We are shutting down. Will try to send the remaining messages.
+		 * However, on the first delivery error, I will terminate. Here we go.
+		 */
+		boolean allOkSoFar = true;
+		while (!isEmpty() && allOkSoFar) {
+			allOkSoFar = pushPendingObjects();
+		}
+
+		if (!isEmpty()) {
+			System.err.println("Warning: PointToPointQueueSendingEnd shutting down with " + pendingObjects.size() + " pending messages.");
+		}
+	}
+}
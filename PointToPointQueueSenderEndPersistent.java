@@ -0,0 +1,208 @@
+import java.io.*;
+import java.net.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Implementation of the sending end of a distributed queue of objects of class E
+ * which keeps one long-lived connection to the receiving end, instead of opening
+ * a new connection for each object like PointToPointQueueSenderEndNonRobust.
+ * The objects are written to the same ObjectOutputStream one after the other, so
+ * the TCP handshake and the serialization stream header are only paid once per
+ * connection. Objects pending together are written with one flush, as far
+ * as setBatching() allows. If a write fails, the connection is dropped and a new one is opened
+ * on the next attempt. The receiver end must keep reading objects from a
+ * connection until it is closed, as PointToPointQueueReceiverEndNonRobust does.
+ *
+ */
+
+public class PointToPointQueueSenderEndPersistent<E extends Serializable> extends PointToPointQueueSenderEndNonRobust<E> {
+
+	/*
+	 * The open connection to the receiving end, null if not connected.
+	 */
+	private Socket socket;
+
+	/*
+	 * The buffered stream on the open connection, null if not connected.
+	 */
+	private OutputStream out;
+
+	/*
+	 * The object stream on top of out, null if not connected.
+	 */
+	private ObjectOutputStream forSendingObjects;
+
+	/*
+	 * The size of the buffer of a connection, so a batch usually goes out
+	 * in one write.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/*
+	 * The bytes written into out, counted above its buffer, to tell when
+	 * a batch is full.
+	 */
+	private final LongAdder bytesBuffered = new LongAdder();
+
+	/**
+	 *
+	 * Moves one object to the receiving end over the open connection,
+	 * connecting first if needed. On failure the connection is closed,
+	 * so the next call reconnects.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param object The object to push.
+	 * @return whether the object was transfered to the receiver end of the queue
+	 */
+	protected boolean pushObject(InetSocketAddress receiverAddress, E object) {
+		return pushObjects(receiverAddress, Collections.singletonList(object), Integer.MAX_VALUE) == 1;
+	}
+
+	/**
+	 *
+	 * Writes objects to the open connection until maxBytes have been
+	 * written, and flushes them at once, connecting first if needed. On
+	 * failure the connection is closed, so the next call reconnects.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @param objects The objects to push, at least one.
+	 * @param maxBytes Stop after the object which reaches this many bytes.
+	 * @return how many objects, from the first, were transfered to the
+	 *         receiver end; -1 on failure
+	 */
+	protected int pushObjects(InetSocketAddress receiverAddress, List<E> objects, int maxBytes) {
+		if (out == null && !connect(receiverAddress)) {
+			return -1;
+		}
+		int pushed = 0;
+		try {
+			long start = System.nanoTime();
+			long end = bytesWritten() + maxBytes;
+			while (pushed < objects.size() && bytesWritten() < end) {
+				writeObject(objects.get(pushed++));
+			}
+			endBatch();
+			serializeTime.recordSince(start);
+			start = System.nanoTime();
+			out.flush();
+			writeTime.recordSince(start);
+		} catch (IOException e) {
+			System.err.println("Could not push object to host " + receiverAddress);
+			System.err.println(e);
+			disconnect();
+			return -1;
+		}
+		return pushed;
+	}
+
+	/**
+	 * Called on a new connection before any object is written to it.
+	 * Subclasses writing another format than Java serialization override
+	 * this together with writeObject().
+	 *
+	 * @param out The buffered stream of the connection.
+	 * @throws IOException if the connection fails.
+	 */
+	protected void startStream(OutputStream out) throws IOException {
+		forSendingObjects = new ObjectOutputStream(out);
+	}
+
+	/**
+	 * Writes one object to the connection. The stream is flushed after the
+	 * last object of a batch.
+	 *
+	 * @param object The object to write.
+	 * @throws IOException if the connection fails.
+	 */
+	protected void writeObject(E object) throws IOException {
+		forSendingObjects.writeObject(object);
+		/*
+		 * Forget the objects written so far. Otherwise the stream keeps
+		 * a reference to every object ever sent, and an object which is
+		 * changed and sent again would arrive as the old version.
+		 */
+		forSendingObjects.reset();
+	}
+
+	/**
+	 * Called after the last object of a batch is written, before the
+	 * stream is flushed. Subclasses which hold the objects back, e.g. to
+	 * compress them together, write them here.
+	 *
+	 * @throws IOException if the connection fails.
+	 */
+	protected void endBatch() throws IOException {
+	}
+
+	/**
+	 *
+	 * @return The bytes written by writeObject() so far on this end,
+	 *         including those held back until endBatch(). Bounds batches.
+	 */
+	protected long bytesWritten() {
+		return bytesBuffered.sum();
+	}
+
+	/**
+	 * Opens the connection to the receiving end.
+	 *
+	 * @param receiverAddress The IP address and port of the receiver end.
+	 * @return whether the connection was opened.
+	 */
+	private boolean connect(InetSocketAddress receiverAddress) {
+		long start = System.nanoTime();
+		try {
+			socket = new Socket(receiverAddress.getAddress(),receiverAddress.getPort());
+			socket.setTcpNoDelay(true);
+			out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream(), bytesSent), BUFFER_SIZE);
+			startStream(new CountingOutputStream(out, bytesBuffered));
+			connectTime.recordSince(start);
+		} catch (UnknownHostException e) {
+			System.err.println("Problems looking up " + receiverAddress);
+			System.err.println(e);
+			disconnect();
+			return false;
+		} catch (IOException e) {
+			System.err.println("Problems opening socket to " + receiverAddress);
+			System.err.println(e);
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection to the receiving end, if any.
+	 */
+	private void disconnect() {
+		try {
+			if (out != null) {
+				out.close();
+			}
+		} catch (IOException e) {
+			// The connection is probably broken already
+		}
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+		forSendingObjects = null;
+		out = null;
+		socket = null;
+	}
+
+	/**
+	 * Starts a thread which pushes objects in this queue to the receiver side.
+	 * Closes the connection when the queue has shut down.
+	 */
+	public void run() {
+		super.run();
+		disconnect();
+	}
+}
@@ -1,10 +1,29 @@
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Turns a Pollable receiving point into a Callback-based receiving point.
- * Will poll for ready messages and do a callback for each of them.
+ * Will poll for ready messages and do a callback for each of them. Messages 
+ * which arrive together are taken from the pollable in one batch.
+ * 
+ * By default the callbacks are done one at a time by a single thread. Given an 
+ * executor and a key function, callbacks for objects with different keys run 
+ * in parallel on the executor, while those for objects with equal keys are 
+ * done one at a time in the order the objects were polled. Any executor will 
+ * do, e.g., a fixed thread pool, or a virtual thread per task executor on Java 
+ * versions which have one. At most MAX_PENDING objects wait for their 
+ * callbacks; then polling waits too, so slow callbacks hold up the pollable 
+ * and its flow control, e.g. that of MulticastQueueImpl.setFlowControl(), 
+ * as they do with a single thread.
  * 
  * @author Jesper Buus Nielsen, Aarhus University, 2011.
  *
@@ -17,21 +36,191 @@ public class PollCallbackAdapter<E> implements Runnable {
 	 * @param callback The callback which processes received objects.
 	 */
 	public PollCallbackAdapter(Pollable<E> pollable, Callback<E> callback) {
+		this(pollable, callback, null, null);
+	}
+
+	/**
+	 *  
+	 * @param pollable The pollable to make callback-based.
+	 * @param callback The callback which processes received objects. Must be 
+	 *                 safe to call from several threads at once.
+	 * @param executor Runs the callbacks, null to run them on one thread.
+	 * @param keys Gives the key of each object; objects with equal keys are 
+	 *             processed in order. Null if all objects have the same key.
+	 */
+	public PollCallbackAdapter(Pollable<E> pollable, Callback<E> callback, 
+			Executor executor, KeyFunction<E> keys) {
 		if (pollable == null || callback == null) {
 			throw new NullPointerException();
 		}
 		this.pollable = pollable;
 		this.callback = callback;
+		this.executor = executor;
+		this.keys = keys;
 		new Thread(this).start();
 	}
 
 	private final Pollable<E> pollable;
 	private final Callback<E> callback;
+	private final Executor executor;
+	private final KeyFunction<E> keys;
+
+	/*
+	 * The keys with objects waiting for their callback, or with a callback 
+	 * running. Guarded by itself.
+	 */
+	private final Map<Object, KeyQueue> pendingKeys = new HashMap<Object, KeyQueue>();
+
+	/*
+	 * The most messages taken from the pollable at a time.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/*
+	 * The most objects waiting for their callbacks on the executor.
+	 */
+	public static final int MAX_PENDING = 16 * BATCH_SIZE;
+
+	/*
+	 * How many milliseconds polling waits for room before it tries the 
+	 * rejected keys again.
+	 */
+	private static final long RETRY_INTERVAL = 10;
+
+	/*
+	 * The objects waiting for their callbacks. Guarded by pendingKeys.
+	 */
+	private int pending;
 
 	public void run() {
+		List<E> batch = new ArrayList<E>(BATCH_SIZE);
 		E object;
 		while ((object = pollable.poll())!=null) {
+			dispatch(object);
+			pollable.drainTo(batch, BATCH_SIZE);
+			for (E next : batch) {
+				dispatch(next);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Does the callback for the object, or queues it behind the earlier 
+	 * objects with the same key, first waiting for room if MAX_PENDING 
+	 * objects are queued.
+	 */
+	private void dispatch(E object) {
+		if (executor == null) {
 			callback.result(object);
+			return;
+		}
+		Object key = (keys == null) ? null : keys.keyOf(object);
+		KeyQueue queue;
+		synchronized (pendingKeys) {
+			while (pending >= MAX_PENDING) {
+				if (!waitForRoom()) {
+					break;
+				}
+			}
+			pending++;
+			queue = pendingKeys.get(key);
+			if (queue == null) {
+				queue = new KeyQueue(key);
+				pendingKeys.put(key, queue);
+			}
+			queue.objects.add(object);
+			if (queue.scheduled) {
+				// A task for the key is queued or running and will take it
+				return;
+			}
+			queue.scheduled = true;
+		}
+		schedule(queue);
+	}
+
+	/**
+	 * Waits for callbacks to be done, and schedules the keys whose tasks 
+	 * were rejected again, as no more objects come for them meanwhile. 
+	 * Called with pendingKeys held.
+	 * 
+	 * @return Whether to go on waiting, false if interrupted.
+	 */
+	private boolean waitForRoom() {
+		try {
+			pendingKeys.wait(RETRY_INTERVAL);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		for (KeyQueue queue : pendingKeys.values()) {
+			if (!queue.scheduled) {
+				queue.scheduled = true;
+				schedule(queue);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the task of a key on the executor. Should the executor reject it, 
+	 * e.g., when it is shut down or full, the failure is reported and the key 
+	 * is no longer scheduled, so its objects wait for the next object with the 
+	 * key to try again.
+	 */
+	private void schedule(KeyQueue queue) {
+		try {
+			executor.execute(queue);
+		} catch (RejectedExecutionException e) {
+			synchronized (pendingKeys) {
+				queue.scheduled = false;
+			}
+			System.err.println("Callbacks for key " + queue.key + " rejected: " + e);
+		}
+	}
+
+	/**
+	 * The objects of one key waiting for their callback. At most one task 
+	 * per key is on the executor at a time, so its callbacks are serial.
+	 */
+	private class KeyQueue implements Runnable {
+		private final Object key;
+		private final Queue<E> objects = new LinkedList<E>();
+
+		/*
+		 * Whether the task is on the executor or running. Guarded by 
+		 * pendingKeys.
+		 */
+		private boolean scheduled;
+
+		KeyQueue(Object key) {
+			this.key = key;
+		}
+
+		/**
+		 * Does the callbacks for the waiting objects, at most BATCH_SIZE of 
+		 * them before giving the thread to other keys.
+		 */
+		public void run() {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				E object;
+				synchronized (pendingKeys) {
+					object = objects.poll();
+					if (object == null) {
+						pendingKeys.remove(key);
+						return;
+					}
+					pending--;
+					pendingKeys.notify();
+				}
+				try {
+					callback.result(object);
+				} catch (RuntimeException e) {
+					// Keep going, or the key would be stuck
+					System.err.println(e);
+				}
+			}
+			schedule(this);
 		}
 	}
 	
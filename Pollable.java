@@ -1,3 +1,5 @@
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 public interface Pollable<E> {
 	
@@ -13,4 +15,36 @@ public interface Pollable<E> {
 	 */
 	public E poll();
 
+	/**
+	 * 
+	 * As poll(), but waits at most the given time for an object to be ready.
+	 * 
+	 * @param timeout How long to wait, in units of unit.
+	 * @param unit The unit of timeout.
+	 * @return The received object, null if none was ready in time or the 
+	 *         pollable is dead.
+	 */
+	public E poll(long timeout, TimeUnit unit);
+
+	/**
+	 * 
+	 * As poll(), but never blocks.
+	 * 
+	 * @return The received object, null if none is ready.
+	 */
+	public E tryPoll();
+
+	/**
+	 * 
+	 * Moves the objects which are ready, but at most max of them, to the 
+	 * given collection, in the order poll() would return them. Never blocks, 
+	 * so a consumer may poll() for one object and then take whatever else 
+	 * arrived with it in one go.
+	 * 
+	 * @param objects The collection to add the objects to.
+	 * @param max The largest number of objects to move.
+	 * @return The number of objects moved.
+	 */
+	public int drainTo(Collection<? super E> objects, int max);
+
 }
@@ -0,0 +1,28 @@
+import java.io.PrintStream;
+import java.util.SortedMap;
+
+/**
+ * Prints each report on one line as name=value pairs.
+ */
+public class PrintingMetricsReporter implements MetricsReporter {
+	private final PrintStream out;
+	private final String label;
+
+	/**
+	 *
+	 * @param out Where to print, e.g. System.err.
+	 * @param label Printed at the start of each line, to tell peers apart.
+	 */
+	public PrintingMetricsReporter(PrintStream out, String label) {
+		this.out = out;
+		this.label = label;
+	}
+
+	public void report(SortedMap<String, Long> values) {
+		StringBuilder line = new StringBuilder(label);
+		for (SortedMap.Entry<String, Long> value : values.entrySet()) {
+			line.append(' ').append(value.getKey()).append('=').append(value.getValue());
+		}
+		out.println(line);
+	}
+}
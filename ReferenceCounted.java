@@ -0,0 +1,20 @@
+/**
+ * An object holding a resource, such as a pooled buffer, which is given
+ * back when the last holder releases it. Whoever creates the object holds
+ * one reference; whoever keeps it for longer than the call it was passed
+ * in must retain() it, and release() it when done.
+ */
+public interface ReferenceCounted {
+
+	/**
+	 * Takes one more reference.
+	 */
+	public void retain();
+
+	/**
+	 * Gives back one reference. The object must not be used after giving
+	 * back the last one.
+	 */
+	public void release();
+
+}
@@ -0,0 +1,221 @@
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends messages on to the next peer around the ring and keeps them until
+ * they are stable, i.e., have reached every peer, so they can be sent again
+ * to a new next peer when the old one leaves before passing them on, see
+ * resend().
+ *
+ * Stability is found with probes: a STABLE message sent after the messages,
+ * which goes around the ring like them until it is back here. A message
+ * stops at the member which put it, and each link keeps the order of the
+ * messages, so once the probe is back every message sent before it has
+ * reached every peer, and so has the ACK of every message acknowledged
+ * before it, i.e., with TOTAL order such a message has been delivered
+ * everywhere. One probe is on its way at a time, sent after the first
+ * message sent while none is, so under load there is one per lap, and the
+ * messages are let go of about two laps after they were sent.
+ *
+ * At most capacity messages are kept. Beyond that the oldest are let go of
+ * before they are stable and cannot be sent again; the evicted counter
+ * tells how many.
+ */
+public class RetransmitBuffer<E extends Serializable> {
+
+	/*
+	 * The member of this peer, which sends the probes.
+	 */
+	private final int member;
+
+	/*
+	 * The kept messages, at their positions in the order sent, from first
+	 * to next, modulo the length.
+	 */
+	private final Message<E>[] kept;
+	private final int mask;
+	private long first, next;
+
+	/*
+	 * The kept messages put at this peer, probes not counted.
+	 */
+	private int own;
+
+	/*
+	 * The position after the last message which is not a probe.
+	 */
+	private long sent;
+
+	private PointToPointQueueSenderEnd<Message<E>> end;
+
+	/*
+	 * The probe on its way, if probing: its sequence number, the position
+	 * after it and when it was sent.
+	 */
+	private boolean probing;
+	private long probeSequence, probePosition, probeSentAt;
+
+	private final LongAdder messagesStable = new LongAdder();
+	private final LongAdder messagesEvicted = new LongAdder();
+	private final LongAdder messagesResent = new LongAdder();
+	private final Histogram stableTime = new Histogram();
+
+	/**
+	 *
+	 * @param member The member ID of this peer.
+	 * @param capacity The most messages kept, rounded up to a power of two.
+	 */
+	public RetransmitBuffer(int member, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Bad capacity " + capacity);
+		}
+		this.member = member;
+		int length = Integer.highestOneBit(capacity);
+		if (length < capacity) {
+			length <<= 1;
+		}
+		kept = newArray(length);
+		mask = length - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Serializable> Message<E>[] newArray(int length) {
+		return (Message<E>[])new Message<?>[length];
+	}
+
+	/**
+	 * Names the counters in metrics: buffered, the messages kept;
+	 * messagesStable, let go of as stable; messagesEvicted, let go of
+	 * before; messagesResent; and the stableTime histogram, how long a
+	 * probe takes around the ring.
+	 *
+	 * @param metrics Where to add the counters.
+	 * @param prefix Put in front of each name, e.g. "retransmit.".
+	 */
+	public void setMetrics(Metrics metrics, String prefix) {
+		metrics.add(prefix + "buffered", new Metrics.Gauge() {
+				public long value() {
+					synchronized (RetransmitBuffer.this) {
+						return next - first;
+					}
+				}
+			});
+		metrics.add(prefix + "messagesStable", messagesStable);
+		metrics.add(prefix + "messagesEvicted", messagesEvicted);
+		metrics.add(prefix + "messagesResent", messagesResent);
+		metrics.add(prefix + "stableTime", stableTime);
+	}
+
+	/**
+	 * Sends the messages to come to end, instead of the one before.
+	 */
+	public synchronized void setEnd(PointToPointQueueSenderEnd<Message<E>> end) {
+		this.end = end;
+	}
+
+	/**
+	 * Sends a message, and a probe after it if none is on its way. The
+	 * message is retained for the sending end and while it is kept, so the
+	 * caller keeps its own reference.
+	 *
+	 * @return The end the message was put to.
+	 */
+	public synchronized PointToPointQueueSenderEnd<Message<E>> send(Message<E> msg) {
+		msg.retain();
+		end.put(msg);
+		keep(msg);
+		if (msg.getType() != Message.Type.STABLE) {
+			sent = next;
+			if (!probing) {
+				probe();
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Lets go of the messages sent before a probe of this peer which is
+	 * back, and sends the next probe if messages have been sent since.
+	 */
+	public synchronized void stable(Message<E> probe) {
+		if (!probing || probe.getSequence() != probeSequence) {
+			return;
+		}
+		stableTime.recordSince(probeSentAt);
+		probing = false;
+		while (first < probePosition) {
+			Message<E> msg = letGo();
+			if (msg.getType() != Message.Type.STABLE) {
+				messagesStable.increment();
+			}
+		}
+		if (sent > probePosition) {
+			probe();
+		}
+	}
+
+	/**
+	 * Sends the kept messages again to end, in the order they were first
+	 * sent, and the messages to come after them. The copies sent are
+	 * marked as resent, so the new next peer drops those it has already
+	 * received.
+	 */
+	public synchronized void resend(PointToPointQueueSenderEnd<Message<E>> end) {
+		this.end = end;
+		for (long position = first; position < next; position++) {
+			Message<E> msg = kept[(int)(position & mask)].makeResent();
+			msg.retain();
+			end.put(msg);
+			messagesResent.increment();
+		}
+		if (probing && probePosition <= first) {
+			// The probe was evicted, so it may be lost with the old end
+			probe();
+		}
+	}
+
+	/**
+	 *
+	 * @return Whether messages put at this peer are not yet stable.
+	 */
+	public synchronized boolean holdsOwn() {
+		return own > 0;
+	}
+
+	private void probe() {
+		Message<E> probe = new Message<E>(member, Message.Type.STABLE);
+		probe.setSequence(++probeSequence);
+		end.put(probe);
+		keep(probe);
+		probing = true;
+		probePosition = next;
+		probeSentAt = System.nanoTime();
+	}
+
+	private void keep(Message<E> msg) {
+		if (next - first == kept.length) {
+			letGo();
+			messagesEvicted.increment();
+		}
+		msg.retain();
+		kept[(int)(next++ & mask)] = msg;
+		if (isOwn(msg)) {
+			own++;
+		}
+	}
+
+	private Message<E> letGo() {
+		int index = (int)(first++ & mask);
+		Message<E> msg = kept[index];
+		kept[index] = null;
+		if (isOwn(msg)) {
+			own--;
+		}
+		msg.release();
+		return msg;
+	}
+
+	private boolean isOwn(Message<E> msg) {
+		return msg.getMember() == member && msg.getType() != Message.Type.STABLE;
+	}
+}
@@ -0,0 +1,223 @@
+import java.io.Serializable;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TOTAL order around the ring. A message is stamped with a Lamport
+ * timestamp and passed around the ring; when it comes back to its member,
+ * an ACK is sent around after it. Every peer holds the messages in
+ * timestamp order and delivers one once its ACK has arrived, so the
+ * latency is up to twice the length of the ring.
+ *
+ * With piggybacking, the member acknowledges its messages on its next DATA
+ * message instead of sending an ACK for each of them, and sends pending
+ * acknowledgements in a single ACK when there is no traffic. The other
+ * peers need no configuration.
+ */
+public class RingTotalOrder<E extends Serializable>
+        implements OrderingEngine<E> {
+    private GroupContext<E> group;
+    private AtomicLong counter;
+    private Queue<Message<E>> msgQueue;
+    private Queue<Message<E>> ackQueue;
+    private long ackFlushInterval;
+    /*
+     * Held while stamping or passing on a message, so a message put here
+     * leaves before the ACK of any message stamped later, and while
+     * touching the pending acknowledgements.
+     */
+    private final Object sendLock = new Object();
+    private long[] pendingAcks;
+    private int pendingAckCount;
+    private Timer ackTimer;
+
+    public RingTotalOrder() {
+        this(-1);
+    }
+
+    /**
+     * @param ackFlushInterval Milliseconds between sending pending
+     *                         acknowledgements when there is no traffic,
+     *                         or a negative number to send an ACK for
+     *                         each message.
+     */
+    public RingTotalOrder(long ackFlushInterval) {
+        this.ackFlushInterval = ackFlushInterval;
+        counter = new AtomicLong();
+        msgQueue = new PriorityQueue<Message<E>>();
+        ackQueue = new PriorityQueue<Message<E>>();
+        pendingAcks = new long[16];
+    }
+
+    public void start(GroupContext<E> group) {
+        this.group = group;
+        if (ackFlushInterval <= 0)
+            return;
+        ackTimer = new Timer("ack-flush", true);
+        ackTimer.schedule(new TimerTask() {
+                public void run() {
+                    flushAcks();
+                }
+            }, ackFlushInterval, ackFlushInterval);
+    }
+
+    public void put(Message<E> msg) {
+        synchronized (sendLock) {
+            // Stamp and enqueue under the lock, so the acks leave in order
+            msg.setTimestamp(counter.incrementAndGet());
+            if (ackFlushInterval > 0)
+                msg.setAcks(takePendingAcks());
+            group.forward(msg);
+        }
+    }
+
+    public void receive(Message<E> msg) {
+        synchronized (sendLock) {
+            if (msg.getType() == Message.Type.ACK)
+                handleAck(msg);
+            else
+                handleData(msg);
+        }
+    }
+
+    public void stop() {
+        flushAcks();
+        if (ackTimer != null)
+            ackTimer.cancel();
+    }
+
+    /**
+     * The messages waiting for their ACK, or for earlier messages to be
+     * acknowledged.
+     */
+    public int heldBack() {
+        synchronized (sendLock) {
+            return msgQueue.size();
+        }
+    }
+
+    /**
+     * None, as a message must not be delivered before every message with
+     * a smaller timestamp has passed, which only holds if each link keeps
+     * the order of the ring.
+     */
+    public Object streamOf(Message<E> msg) {
+        return null;
+    }
+
+    private void handleData(Message<E> msg) {
+        long timestamp = msg.getTimestamp();
+        long seen;
+        do {
+            seen = counter.get();
+        } while (!counter.compareAndSet(seen, Math.max(timestamp, seen) + 1));
+
+        // The mesage is from us
+        if (msg.getMember() == group.getMemberId()) {
+            group.completed(msg);
+            if (ackFlushInterval > 0)
+                addPendingAck(timestamp);
+            else
+                group.forward(msg.makeAck());
+        } else { // Not from us
+            markAcked(msg);
+            msg.retain();
+            msgQueue.add(msg);
+            deliverAcked();
+            // Pass it on if not from self
+            group.forward(msg);
+        }
+    }
+
+    private void handleAck(Message<E> msg) {
+        if (msg.getMember() == group.getMemberId())
+            return;
+        if (msg.getAcks() == null)
+            ackQueue.add(msg);
+        else
+            markAcked(msg);
+        deliverAcked();
+        group.forward(msg); // Pass it on if not from self
+    }
+
+    /**
+     * Records the acknowledgements piggybacked on a message.
+     */
+    private void markAcked(Message<E> msg) {
+        long[] acks = msg.getAcks();
+        if (acks == null)
+            return;
+        for (long timestamp : acks) {
+            Message<E> ack = new Message<E>(msg.getMember(), Message.Type.ACK);
+            ack.setTimestamp(timestamp);
+            ackQueue.add(ack);
+        }
+    }
+
+    /**
+     * Delivers messages from the front of msgQueue as long as they have
+     * been acknowledged. Once the ACK of a message has arrived, no message
+     * ordered before it can arrive any more, so the order is total even
+     * if the acknowledgements of different peers arrive out of order.
+     */
+    private void deliverAcked() {
+        Message<E> ack;
+        while ((ack = ackQueue.peek()) != null) {
+            Message<E> head = msgQueue.peek();
+            if (head != null && head.compareTo(ack) < 0)
+                return; // The front is not acknowledged yet
+            ackQueue.poll();
+            if (head == null || !ack.hasAck(head))
+                continue; // Sent before we joined, we never got it
+            msgQueue.poll();
+            group.deliver(head);
+            head.release();
+        }
+    }
+
+    private void addPendingAck(long timestamp) {
+        synchronized (sendLock) {
+            if (pendingAckCount == pendingAcks.length) {
+                long[] larger = new long[pendingAcks.length * 2];
+                System.arraycopy(pendingAcks, 0, larger, 0, pendingAckCount);
+                pendingAcks = larger;
+            }
+            pendingAcks[pendingAckCount++] = timestamp;
+        }
+    }
+
+    /**
+     * Must be called holding sendLock.
+     *
+     * @return The pending acknowledgements, null if there are none.
+     */
+    private long[] takePendingAcks() {
+        if (pendingAckCount == 0)
+            return null;
+        long[] acks = new long[pendingAckCount];
+        System.arraycopy(pendingAcks, 0, acks, 0, pendingAckCount);
+        pendingAckCount = 0;
+        return acks;
+    }
+
+    /**
+     * Sends the pending acknowledgements in one ACK, if there are any.
+     */
+    private void flushAcks() {
+        if (ackFlushInterval <= 0)
+            return;
+        synchronized (sendLock) {
+            long[] acks = takePendingAcks();
+            if (acks == null)
+                return;
+            Message<E> msg = new Message<E>(group.getMemberId(),
+                    Message.Type.ACK);
+            msg.setTimestamp(acks[acks.length - 1]);
+            msg.setAcks(acks);
+            group.forward(msg);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+
+public class SenderThroughputExample {
+
+	/**
+	 * Measures how many objects per second a sending end moves to a receiving
+	 * end on this machine, once with a new connection per object
+	 * (PointToPointQueueSenderEndNonRobust), once with a persistent
+	 * connection (PointToPointQueueSenderEndPersistent), and once with a
+	 * persistent connection carrying frames to a selector-based receiving
+	 * end (PointToPointQueueReceiverEndNio).
+	 * Call with "[objects [port]]", defaults are 10000 objects on port 40500.
+	 *
+	 * @param args the command line
+	 */
+	public static void main(String[] args) throws IOException {
+		int objects = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 40500;
+
+		double perObject = measure(new PointToPointQueueSenderEndNonRobust<String>(),
+				new PointToPointQueueReceiverEndNonRobust<String>(), objects, port);
+		System.out.println("Connection per object: " + (long)perObject + " objects/s");
+		double persistent = measure(new PointToPointQueueSenderEndPersistent<String>(),
+				new PointToPointQueueReceiverEndNonRobust<String>(), objects, port + 1);
+		System.out.println("Persistent connection: " + (long)persistent + " objects/s");
+		System.out.println("Speedup: " + Math.round(persistent / perObject * 10) / 10.0 + "x");
+		double framed = measure(new PointToPointQueueSenderEndFramed<String>(),
+				new PointToPointQueueReceiverEndNio<String>(), objects, port + 2);
+		System.out.println("Frames to selector:    " + (long)framed + " objects/s");
+	}
+
+	/**
+	 * Pushes a number of objects through the given sending end to the given
+	 * receiving end and waits until all of them are received.
+	 *
+	 * @return The number of objects received per second.
+	 */
+	private static double measure(PointToPointQueueSenderEnd<String> s, PointToPointQueueReceiverEnd<String> r, 
+			int objects, int port) throws IOException {
+		r.listenOnPort(port);
+		s.setReceiver(new InetSocketAddress("localhost", port));
+		long start = System.nanoTime();
+		for (int i=0; i<objects; i++) {
+			s.put("MESSAGE " + i);
+		}
+		for (int i=0; i<objects; i++) {
+			r.poll();
+		}
+		long time = System.nanoTime() - start;
+		s.shutdown();
+		r.shutdown();
+		return objects / (time / 1e9);
+	}
+
+}
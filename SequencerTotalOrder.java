@@ -0,0 +1,306 @@
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * TOTAL order through a sequencer instead of around the ring. A message
+ * put at a member is sent straight to the sequencer, which numbers it and
+ * sends it as ORDERED straight to every member. Every member delivers the
+ * messages in the order of their numbers, so a message is delivered after
+ * two hops whatever the size of the group. Messages from a member reach
+ * the sequencer in the order they were put, so the order is FIFO as well.
+ *
+ * The sequencer is the member with the lowest ID, normally the one which
+ * created the group. When it leaves, the member with the next lowest ID
+ * takes over with the first message it gets to number afterwards. It asks
+ * every member for the ORDERED messages it holds back and the highest
+ * number it has seen, sends the held back messages on to everyone, and
+ * tells everyone to go on from above the highest number, see takeOver().
+ * So no number is given to two messages, and the members deliver the same
+ * messages in the same order. Messages on their way to or from the old
+ * sequencer when it leaves may be lost, as anything on its way to a peer
+ * leaving the ring: a message only some members got before they delivered
+ * it is skipped by the others. ORDERED messages carry the ID of their
+ * sequencer plus one as timestamp, so those still arriving from the old
+ * one after the handover are dropped.
+ *
+ * A member starts delivering at the number of the first ORDERED message it
+ * gets, so a joining peer gets the messages numbered after the sequencer
+ * learned about it. As with the ring, a member does not get its own
+ * messages from poll().
+ */
+public class SequencerTotalOrder<E extends Serializable>
+        implements OrderingEngine<E> {
+    /*
+     * The kinds of ACK messages of a handover, in their timestamp: the new
+     * sequencer asks for reports, a member reports the highest number it
+     * has seen in the sequence, and the new sequencer tells where the
+     * numbers go on.
+     */
+    private static final long TAKE_OVER = 1;
+    private static final long REPORT = 2;
+    private static final long GO_ON = 3;
+
+    private GroupContext<E> group;
+    private long nextToNumber;
+    private long nextToDeliver;
+    private long highestSeen;
+    private TreeMap<Long, Message<E>> outOfOrder;
+    /*
+     * The sequencer whose ORDERED messages are delivered, NO_MEMBER until
+     * a handover.
+     */
+    private int sequencer;
+    /*
+     * Whether this member numbers the messages, i.e., it is the sequencer
+     * and has taken over from the one before.
+     */
+    private boolean numbering;
+    /*
+     * While taking over: the members which have not reported yet, null if
+     * none have been asked, and the highest number reported so far.
+     */
+    private Set<Integer> reporting;
+    private long highestReported;
+    /*
+     * The DATA messages to number once this member has taken over.
+     */
+    private List<Message<E>> waiting;
+
+    public SequencerTotalOrder() {
+        nextToDeliver = -1;
+        highestSeen = -1;
+        outOfOrder = new TreeMap<Long, Message<E>>();
+        sequencer = Message.NO_MEMBER;
+        waiting = new ArrayList<Message<E>>();
+    }
+
+    public synchronized void start(GroupContext<E> group) {
+        this.group = group;
+        // The member creating the group has no one to take over from
+        numbering = getSequencer() == group.getMemberId();
+    }
+
+    public void put(Message<E> msg) {
+        int sequencer = getSequencer();
+        if (sequencer == group.getMemberId())
+            number(msg);
+        else
+            group.sendTo(sequencer, msg);
+    }
+
+    public void receive(Message<E> msg) {
+        switch (msg.getType()) {
+            case ORDERED:
+                order(msg);
+                break;
+            case ACK:
+                handOver(msg);
+                break;
+            default: // DATA sent to us as the sequencer
+                number(msg);
+        }
+    }
+
+    public void stop() {
+    }
+
+    public synchronized int heldBack() {
+        return outOfOrder.size() + waiting.size();
+    }
+
+    /**
+     * None. ORDERED messages are delivered by number anyway, and the
+     * first number a joining peer sees is where its delivery starts.
+     */
+    public Object streamOf(Message<E> msg) {
+        return null;
+    }
+
+    /**
+     * @return The member ID of the sequencer, the lowest ID in use.
+     */
+    private int getSequencer() {
+        InetSocketAddress[] members = group.getMembers().toArray();
+        for (int id = 0; id < members.length; id++) {
+            if (members[id] != null)
+                return id;
+        }
+        return group.getMemberId();
+    }
+
+    /**
+     * Gives a DATA message the next number and sends it to every member.
+     * Runs at the sequencer, which first takes over if it has not yet.
+     */
+    private synchronized void number(Message<E> msg) {
+        if (!numbering) {
+            msg.retain();
+            waiting.add(msg);
+            takeOver();
+            return;
+        }
+        Message<E> ordered = new Message<E>(msg.getMember(),
+                Message.Type.ORDERED);
+        ordered.setDataOf(msg);
+        ordered.setSequence(nextToNumber++);
+        ordered.setTimestamp(group.getMemberId() + 1);
+        ordered.setPutTime(msg.getPutTime());
+        ordered.setTraceId(msg.getTraceId());
+        ordered.setHops(msg.getHops());
+        InetSocketAddress[] members = group.getMembers().toArray();
+        for (int id = 0; id < members.length; id++) {
+            if (members[id] == null)
+                continue;
+            if (id == group.getMemberId())
+                order(ordered);
+            else
+                group.sendTo(id, ordered);
+        }
+    }
+
+    /**
+     * Takes over from the sequencer before, once this member knows it has
+     * left: asks the others for a REPORT, and when all still there have
+     * sent one, passes on the held back messages, tells everyone where to
+     * GO_ON, and numbers the waiting messages.
+     */
+    private void takeOver() {
+        int me = group.getMemberId();
+        if (getSequencer() != me)
+            return; // Has not heard the sequencer left yet
+        InetSocketAddress[] members = group.getMembers().toArray();
+        if (reporting == null) {
+            reporting = new HashSet<Integer>();
+            highestReported = -1;
+            for (int id = 0; id < members.length; id++) {
+                if (members[id] == null || id == me)
+                    continue;
+                reporting.add(id);
+                group.sendTo(id, newAck(TAKE_OVER, 0));
+            }
+        } else {
+            // Do not wait for those which have left since
+            for (Integer id : new ArrayList<Integer>(reporting)) {
+                if (members.length <= id || members[id] == null)
+                    reporting.remove(id);
+            }
+        }
+        if (!reporting.isEmpty())
+            return;
+        long goOn = Math.max(Math.max(highestReported, highestSeen) + 1,
+                Math.max(nextToNumber, nextToDeliver));
+        for (int id = 0; id < members.length; id++) {
+            if (members[id] == null || id == me)
+                continue;
+            for (Message<E> held : outOfOrder.values())
+                group.sendTo(id, held);
+            group.sendTo(id, newAck(GO_ON, goOn));
+        }
+        goOn(me, goOn);
+        reporting = null;
+        numbering = true;
+        for (Message<E> msg : waiting) {
+            number(msg);
+            msg.release();
+        }
+        waiting.clear();
+    }
+
+    /**
+     * Handles the ACK messages of a handover, see takeOver().
+     */
+    private synchronized void handOver(Message<E> msg) {
+        int from = msg.getMember();
+        if (msg.getTimestamp() == TAKE_OVER) {
+            // What the new sequencer may not have, before the report
+            for (Message<E> held : outOfOrder.values())
+                group.sendTo(from, held);
+            group.sendTo(from, newAck(REPORT, highestSeen));
+        } else if (msg.getTimestamp() == REPORT) {
+            if (reporting != null && reporting.remove(from)) {
+                highestReported = Math.max(highestReported,
+                        msg.getSequence());
+                takeOver();
+            }
+        } else if (msg.getTimestamp() == GO_ON) {
+            goOn(from, msg.getSequence());
+        }
+        if (!numbering && !waiting.isEmpty())
+            takeOver();
+    }
+
+    private Message<E> newAck(long kind, long number) {
+        Message<E> ack = new Message<E>(group.getMemberId(),
+                Message.Type.ACK);
+        ack.setTimestamp(kind);
+        ack.setSequence(number);
+        return ack;
+    }
+
+    /**
+     * Delivers the held back messages numbered below where the new
+     * sequencer goes on, skipping those which will not come, and delivers
+     * its messages from there.
+     */
+    private void goOn(int newSequencer, long number) {
+        if (newSequencer < sequencer)
+            return;
+        sequencer = newSequencer;
+        while (!outOfOrder.isEmpty() && outOfOrder.firstKey() < number) {
+            Map.Entry<Long, Message<E>> held = outOfOrder.pollFirstEntry();
+            nextToDeliver = held.getKey();
+            deliver(held.getValue());
+            held.getValue().release();
+        }
+        nextToDeliver = Math.max(nextToDeliver, number);
+        deliverHeld();
+    }
+
+    /**
+     * Delivers an ORDERED message if all messages numbered before it are
+     * delivered, and then any held back messages it was waiting for.
+     */
+    private synchronized void order(Message<E> msg) {
+        if (msg.getTimestamp() - 1 < sequencer)
+            return; // From a sequencer which has been taken over from
+        long number = msg.getSequence();
+        highestSeen = Math.max(highestSeen, number);
+        if (nextToDeliver < 0)
+            nextToDeliver = number;
+        if (number < nextToDeliver)
+            return; // Already delivered
+        if (number > nextToDeliver) {
+            msg.retain();
+            Message<E> duplicate = outOfOrder.put(number, msg);
+            if (duplicate != null)
+                duplicate.release();
+            return;
+        }
+        deliver(msg);
+        deliverHeld();
+    }
+
+    private void deliverHeld() {
+        Message<E> later;
+        while ((later = outOfOrder.remove(nextToDeliver)) != null) {
+            deliver(later);
+            later.release();
+        }
+        // Should we become the sequencer, we number on from here.
+        nextToNumber = Math.max(nextToNumber, nextToDeliver);
+    }
+
+    private void deliver(Message<E> msg) {
+        if (msg.getMember() != group.getMemberId())
+            group.deliver(msg);
+        else
+            group.completed(msg);
+        nextToDeliver++;
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.*;
+
+/**
+ *
+ * Codec writing objects with Java's serialization. Works for any Serializable
+ * class, but each frame carries the stream header and the class descriptors
+ * of the object.
+ *
+ */
+public class SerializationCodec<E extends Serializable> implements Codec<E> {
+
+	public void encode(E object, DataOutputStream out) throws IOException {
+		ObjectOutputStream forSerializing = new ObjectOutputStream(out);
+		forSerializing.writeObject(object);
+		forSerializing.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	public E decode(DataInputStream in) throws IOException {
+		ObjectInputStream forDeserializing = new ObjectInputStream(in);
+		try {
+			return (E)forDeserializing.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("The peer sent object of unknown type: " + e.getMessage());
+		}
+	}
+
+}
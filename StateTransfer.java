@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *
+ * Copies the state the application has built from the messages it polled,
+ * e.g. a replicated state machine, to a peer joining the group, so the
+ * joining peer starts where the others are instead of from nothing. See
+ * MulticastQueueImpl.setStateTransfer().
+ *
+ * Both methods are called on the thread of the application, from within
+ * poll(), so they see the state exactly as it is between two messages.
+ *
+ */
+public interface StateTransfer {
+
+	/**
+	 * Writes the state at the peer the joining peer joins after. It must
+	 * hold the effect of exactly the messages polled so far and of the
+	 * objects put by this thread so far, as this peer does not poll its
+	 * own messages.
+	 *
+	 * @param out Sends what is written in chunks to the joining peer,
+	 *            while the group goes on. Need not be closed.
+	 * @throws IOException if the state cannot be written.
+	 */
+	public void writeState(OutputStream out) throws IOException;
+
+	/**
+	 * Reads the state written by writeState() at the joining peer, before
+	 * poll() returns its first message. The messages polled afterwards
+	 * are those after the state, each once.
+	 *
+	 * @param in Ends where the state does.
+	 * @throws IOException if the state cannot be read, or the other peer
+	 *                     could not send it.
+	 */
+	public void readState(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,181 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StateTransferExample {
+    /**
+     * Checks the state transfer on a ring of peers in this JVM, with TOTAL
+     * order. Each peer runs a replicated counter: every message adds its
+     * number to a sum, and the state is the sum and how many messages of
+     * each peer went into it. The peers join one at a time while those
+     * already in put and poll, so each one gets its state under live
+     * traffic. Every peer must apply every message once, those of each
+     * peer in the order they were put, and end with the same sum.
+     * Call with "[peers [messages [port]]]", defaults are 5 peers, 2000
+     * messages from each and ports from 44000 on. Exits with 1 if a check
+     * fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 44000;
+        List<Counter> counters = new ArrayList<Counter>();
+        for (int i = 0; i < peers; i++) {
+            MulticastQueueImpl<String> peer =
+                new MulticastQueueImpl<String>(port + i);
+            Counter counter = new Counter(peer, i, peers, messages);
+            if (i == 0) {
+                peer.start();
+                peer.createGroup(port, MulticastQueue.DeliveryGuarantee.TOTAL);
+            } else {
+                // Join at the last peer, which is then the donor
+                peer.joinGroup(new InetSocketAddress("localhost", port + i - 1),
+                        MulticastQueue.DeliveryGuarantee.TOTAL);
+            }
+            counter.start();
+            // One at a time
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!counter.hasState() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            counters.add(counter);
+        }
+        long deadline = System.currentTimeMillis() + 60000;
+        boolean done = false;
+        while (!done && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            done = true;
+            for (Counter counter : counters)
+                done &= counter.isDone();
+        }
+        String failure = null;
+        for (Counter counter : counters) {
+            String wrong = counter.check(counters.get(0));
+            if (wrong != null && failure == null)
+                failure = wrong;
+        }
+        System.out.println("State transfer: " + (failure == null ? "OK" : failure));
+        System.exit(failure == null ? 0 : 1);
+    }
+
+    /**
+     * A peer putting messages, paced so the others join meanwhile, and
+     * applying those it polls to its counter.
+     */
+    private static class Counter extends Thread implements StateTransfer {
+        private final MulticastQueueImpl<String> peer;
+        private final int index, messages;
+        /*
+         * The state: the sum, and the next message expected from each peer.
+         */
+        private long sum;
+        private final long[] next;
+        private boolean hasState;
+        private String failure;
+
+        Counter(MulticastQueueImpl<String> peer, int index, int peers,
+                int messages) {
+            this.peer = peer;
+            this.index = index;
+            this.messages = messages;
+            next = new long[peers];
+            // The first peer starts the group, so it has the state
+            hasState = index == 0;
+            setDaemon(true);
+            peer.setStateTransfer(this);
+        }
+
+        public void run() {
+            try {
+                // A joining peer reads its state at the first poll, before
+                // it puts anything of its own
+                pollAll();
+                for (int i = 0; i < messages; i++) {
+                    peer.put(index + ":" + i);
+                    apply(index, i);
+                    if (i % 20 == 0)
+                        Thread.sleep(1);
+                    pollAll();
+                }
+                while (true) {
+                    Thread.sleep(5);
+                    pollAll();
+                }
+            } catch (InterruptedException e) {
+            } catch (RuntimeException e) {
+                fail("peer " + index + " failed: " + e.getMessage());
+            }
+        }
+
+        private void pollAll() {
+            String msg;
+            while ((msg = peer.tryPoll()) != null) {
+                int colon = msg.indexOf(':');
+                apply(Integer.parseInt(msg.substring(0, colon)),
+                        Long.parseLong(msg.substring(colon + 1)));
+            }
+        }
+
+        private synchronized void apply(int sender, long number) {
+            if (number != next[sender])
+                fail("peer " + index + " got " + sender + ":" + number
+                        + " instead of " + sender + ":" + next[sender]);
+            next[sender] = number + 1;
+            sum += number;
+        }
+
+        private synchronized void fail(String failure) {
+            if (this.failure == null)
+                this.failure = failure;
+        }
+
+        public synchronized void writeState(OutputStream out)
+                throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(sum);
+            for (long count : next)
+                data.writeLong(count);
+            data.flush();
+        }
+
+        public synchronized void readState(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            sum = data.readLong();
+            for (int i = 0; i < next.length; i++)
+                next[i] = data.readLong();
+            hasState = true;
+        }
+
+        synchronized boolean hasState() {
+            return hasState;
+        }
+
+        synchronized boolean isDone() {
+            for (long count : next) {
+                if (count != messages)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return What is wrong with this counter, null if nothing.
+         */
+        synchronized String check(Counter first) {
+            if (failure != null)
+                return failure;
+            if (!hasState)
+                return "peer " + index + " got no state";
+            if (!isDone())
+                return "peer " + index + " applied too few messages";
+            if (sum != first.sum)
+                return "peer " + index + " has sum " + sum + ", peer 0 has "
+                    + first.sum;
+            return null;
+        }
+    }
+}
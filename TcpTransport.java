@@ -0,0 +1,29 @@
+import java.io.Serializable;
+
+/**
+ * Frames written with a codec on persistent TCP connections
+ * (PointToPointQueueSenderEndFramed), read by a selector-based receiving
+ * end (PointToPointQueueReceiverEndNio). With a GatheringCodec, the frames
+ * are written by PointToPointQueueSenderEndGathering instead.
+ */
+public class TcpTransport<E extends Serializable> implements Transport<E> {
+	private final Codec<E> codec;
+
+	/**
+	 * @param codec Writes and reads the objects. Shared by all the ends.
+	 */
+	public TcpTransport(Codec<E> codec) {
+		this.codec = codec;
+	}
+
+	public PointToPointQueueSenderEnd<E> newSenderEnd() {
+		if (codec instanceof GatheringCodec) {
+			return new PointToPointQueueSenderEndGathering<E>((GatheringCodec<E>)codec);
+		}
+		return new PointToPointQueueSenderEndFramed<E>(codec);
+	}
+
+	public PointToPointQueueReceiverEnd<E> newReceiverEnd() {
+		return new PointToPointQueueReceiverEndNio<E>(codec);
+	}
+}
@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the timelines of traced messages at one peer. A traced message
+ * carries its trace ID and the hops it has made so far, see
+ * Message.getHops(); each peer adds a hop when the message arrives and
+ * merges the hops it carries into its own timeline, so the member which
+ * put a message sees the whole lap when the message, and its ACK, come
+ * back. Events which happen after a message is passed on, such as the
+ * delivery, are only known to the peer they happen at.
+ *
+ * Only the most recent traces are kept.
+ */
+public class Tracer {
+
+	public enum Event {
+		/** Put at its member. */
+		PUT,
+		/** A DATA message arrived. */
+		RECEIVED,
+		/** The ACK of the message arrived. */
+		ACK,
+		/** The message arrived numbered by the sequencer. */
+		ORDERED,
+		/** Added to the queue for poll(). */
+		DELIVERED,
+		/** Back at its member, see GroupContext.completed(). */
+		COMPLETED
+	};
+
+	private static final Event[] EVENTS = Event.values();
+
+	/**
+	 * Something which happened to a traced message.
+	 */
+	public static class Hop {
+		private final int member;
+		private final Event event;
+		private final long time;
+
+		Hop(int member, Event event, long time) {
+			this.member = member;
+			this.event = event;
+			this.time = time;
+		}
+
+		public int getMember() {
+			return member;
+		}
+
+		public Event getEvent() {
+			return event;
+		}
+
+		/**
+		 * @return When, from Metrics.wallClockMicros() at the member.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Hop)) {
+				return false;
+			}
+			Hop hop = (Hop)other;
+			return member == hop.member && event == hop.event && time == hop.time;
+		}
+
+		public int hashCode() {
+			return (int)(time ^ (time >>> 32)) * 31 + member * 7 + event.ordinal();
+		}
+	}
+
+	private static final Comparator<Hop> BY_TIME = new Comparator<Hop>() {
+		public int compare(Hop a, Hop b) {
+			return a.time < b.time ? -1 : (a.time > b.time ? 1 : a.event.compareTo(b.event));
+		}
+	};
+
+	private final Map<Long, List<Hop>> timelines;
+
+	/**
+	 *
+	 * @param capacity How many traces to keep. The oldest is forgotten
+	 *                 when a new one starts.
+	 */
+	public Tracer(final int capacity) {
+		timelines = new LinkedHashMap<Long, List<Hop>>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, List<Hop>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Records an event at this peer.
+	 */
+	public synchronized void record(long traceId, int member, Event event, long time) {
+		add(timelineOf(traceId), new Hop(member, event, time));
+	}
+
+	/**
+	 * Adds the hops carried by a message to its timeline.
+	 *
+	 * @param hops As from Message.getHops(), may be null.
+	 */
+	public synchronized void merge(long traceId, long[] hops) {
+		if (hops == null) {
+			return;
+		}
+		List<Hop> timeline = timelineOf(traceId);
+		for (int i = 0; i < hops.length; i += 2) {
+			add(timeline, new Hop((int)(hops[i + 1] >> 8), EVENTS[(int)(hops[i + 1] & 0xFF)], hops[i]));
+		}
+	}
+
+	/**
+	 *
+	 * @return The events known here, in the order they happened, or an
+	 *         empty list if the trace is unknown or forgotten.
+	 */
+	public synchronized List<Hop> timeline(long traceId) {
+		List<Hop> timeline = timelines.get(traceId);
+		if (timeline == null) {
+			return Collections.emptyList();
+		}
+		List<Hop> sorted = new ArrayList<Hop>(timeline);
+		Collections.sort(sorted, BY_TIME);
+		return sorted;
+	}
+
+	/**
+	 *
+	 * @return The IDs of the traces kept, oldest first.
+	 */
+	public synchronized List<Long> traceIds() {
+		return new ArrayList<Long>(timelines.keySet());
+	}
+
+	/**
+	 * Prints a timeline as one line, with the times in microseconds after
+	 * the first event, e.g. "PUT@0 +0 RECEIVED@1 +85 ...".
+	 */
+	public String format(long traceId) {
+		List<Hop> timeline = timeline(traceId);
+		StringBuilder line = new StringBuilder(Long.toHexString(traceId)).append(':');
+		long start = timeline.isEmpty() ? 0 : timeline.get(0).time;
+		for (Hop hop : timeline) {
+			line.append(' ').append(hop.event).append('@').append(hop.member).append(" +").append(hop.time - start);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Adds a hop to the hops carried by a message. Returns a new array, so
+	 * a message already handed to another thread is not changed under it.
+	 *
+	 * @param hops As from Message.getHops(), may be null.
+	 * @return The hops with the new one at the end.
+	 */
+	public static long[] append(long[] hops, int member, Event event, long time) {
+		int length = hops == null ? 0 : hops.length;
+		long[] appended = new long[length + 2];
+		if (hops != null) {
+			System.arraycopy(hops, 0, appended, 0, length);
+		}
+		appended[length] = time;
+		appended[length + 1] = ((long)member << 8) | event.ordinal();
+		return appended;
+	}
+
+	private List<Hop> timelineOf(long traceId) {
+		List<Hop> timeline = timelines.get(traceId);
+		if (timeline == null) {
+			timeline = new ArrayList<Hop>();
+			timelines.put(traceId, timeline);
+		}
+		return timeline;
+	}
+
+	private static void add(List<Hop> timeline, Hop hop) {
+		if (!timeline.contains(hop)) {
+			timeline.add(hop);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+import java.io.Serializable;
+
+/**
+ * Makes the sending and receiving ends a MulticastQueueImpl talks to its
+ * peers through. All peers in a group must use the same kind of transport.
+ */
+public interface Transport<E extends Serializable> {
+
+	/**
+	 * @return A new sending end, not yet given a receiver.
+	 */
+	public PointToPointQueueSenderEnd<E> newSenderEnd();
+
+	/**
+	 * @return A new receiving end, not yet listening.
+	 */
+	public PointToPointQueueReceiverEnd<E> newReceiverEnd();
+
+}
@@ -0,0 +1,49 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Passes messages down a spanning tree with the given fanout, rooted at
+ * the member which put the message. The members are ranked by ID from
+ * the origin on, wrapping around, and the member of rank r passes the
+ * message on to the members of rank r*fanout+1 to r*fanout+fanout. A
+ * message thus reaches all N members in about log N / log fanout hops
+ * instead of N-1 around the ring, and every origin has its own tree, so
+ * the forwarding is spread over all members.
+ *
+ * The tree is computed from the local view of the membership. While a
+ * member joins or leaves, peers may disagree on the tree, and a message
+ * may be lost or arrive twice.
+ */
+public class TreeDissemination implements Dissemination {
+    private static final int[] NONE = new int[0];
+
+    private int fanout;
+
+    public TreeDissemination(int fanout) {
+        if (fanout < 1)
+            throw new IllegalArgumentException("Fanout must be positive");
+        this.fanout = fanout;
+    }
+
+    public int[] forwardTo(int origin, int thisMember, Membership members) {
+        InetSocketAddress[] view = members.toArray();
+        int size = Math.max(view.length, origin + 1);
+        int[] ranked = new int[size];
+        int count = 0;
+        int rank = -1;
+        for (int i = 0; i < size; i++) {
+            int id = (origin + i) % size;
+            // The origin keeps its place in the tree, even if it has left
+            if (id != origin && (id >= view.length || view[id] == null))
+                continue;
+            if (id == thisMember)
+                rank = count;
+            ranked[count++] = id;
+        }
+        if (rank < 0 || rank * fanout + 1 >= count)
+            return NONE;
+        int first = rank * fanout + 1;
+        return Arrays.copyOfRange(ranked, first,
+                Math.min(first + fanout, count));
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A vector clock indexed by member ID: entry i counts the messages from
+ * member i which happened before. Members which have not sent anything
+ * have entry 0, so the clock is sparse in practice; MessageCodec only
+ * writes the non-zero entries. The array grows as members with higher
+ * IDs show up.
+ */
+public class VectorClock implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long[] entries;
+
+    public VectorClock() {
+        entries = new long[0];
+    }
+
+    private VectorClock(long[] entries) {
+        this.entries = entries;
+    }
+
+    public long get(int member) {
+        return member < entries.length ? entries[member] : 0;
+    }
+
+    public void set(int member, long value) {
+        if (member >= entries.length) {
+            if (value == 0)
+                return;
+            entries = Arrays.copyOf(entries,
+                    Math.max(member + 1, 2 * entries.length));
+        }
+        entries[member] = value;
+    }
+
+    public void increment(int member) {
+        set(member, get(member) + 1);
+    }
+
+    /**
+     * @return One more than the highest member ID which may have a
+     *         non-zero entry.
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Checks if everything the other clock has seen, except messages from
+     * the given member, has been seen by this clock.
+     */
+    public boolean coversExcept(VectorClock other, int member) {
+        for (int i = 0; i < other.entries.length; i++) {
+            if (i != member && other.entries[i] > get(i))
+                return false;
+        }
+        return true;
+    }
+
+    public VectorClock copy() {
+        return new VectorClock(entries.clone());
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder("[");
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != 0)
+                s.append(i).append('=').append(entries[i]).append(',');
+        }
+        if (s.length() > 1)
+            s.setLength(s.length() - 1);
+        return s.append(']').toString();
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The code the benchmarks in ddist.benchmarks measure. JMH only accepts
+ * benchmarks in a named package, and classes in a named package cannot
+ * refer to the queue, which lives in the unnamed package, so the
+ * benchmarks get their work from here through reflection, once per trial,
+ * as a Callable. Each call of it is one operation.
+ *
+ * A fixture which holds threads or sockets is also Closeable.
+ */
+public class BenchmarkFixtures {
+
+    private static final Random random = new Random();
+
+    /**
+     * @return A random port to start from, so a trial does not wait for
+     *         the sockets of the previous one to be released.
+     */
+    private static int freePorts() {
+        return 30000 + random.nextInt(1000) * 20;
+    }
+
+    /**
+     * Encodes a small DATA message and decodes it again.
+     *
+     * @param kind "serialization" for Java's serialization of the whole
+     *             message, "compact" for MessageCodec.
+     */
+    public static Callable<Object> codec(String kind) {
+        final Codec<Message<String>> codec = kind.equals("compact")
+            ? new MessageCodec<String>()
+            : new SerializationCodec<Message<String>>();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        return new Callable<Object>() {
+            public Object call() throws IOException {
+                // A fresh message, as MessageCodec keeps the serialized
+                // payload on the message it encodes
+                Message<String> msg = new Message<String>(3,
+                        Message.Type.DATA, null, "Haxxor1: hello ring");
+                msg.setTimestamp(4711);
+                msg.setAcks(new long[] { 4700, 4705 });
+                bytes.reset();
+                codec.encode(msg, out);
+                out.flush();
+                return codec.decode(new DataInputStream(
+                            new ByteArrayInputStream(bytes.toByteArray())))
+                    .getData();
+            }
+        };
+    }
+
+    /**
+     * Adds messages with random timestamps and members, half of them
+     * ACKs, to a PriorityBlockingQueue and takes them out again, so the
+     * queue orders them with Message.compareTo().
+     */
+    public static Callable<Object> priorityQueue(int size) {
+        final List<Message<String>> messages =
+            new ArrayList<Message<String>>(size);
+        for (int i = 0; i < size; i++) {
+            Message<String> msg = new Message<String>(random.nextInt(16),
+                    i % 2 == 0 ? Message.Type.DATA : Message.Type.ACK);
+            msg.setTimestamp(random.nextInt(size));
+            messages.add(msg);
+        }
+        final PriorityBlockingQueue<Message<String>> queue =
+            new PriorityBlockingQueue<Message<String>>(size);
+        return new Callable<Object>() {
+            public Object call() {
+                for (Message<String> msg : messages)
+                    queue.offer(msg);
+                Message<String> last = null;
+                while (!queue.isEmpty())
+                    last = queue.poll();
+                return last;
+            }
+        };
+    }
+
+    /**
+     * Puts a batch of objects in a sending end and polls them from the
+     * receiving end it talks to.
+     *
+     * @param kind "persistent" for an object stream on a persistent
+     *             connection, "framed" for frames to a selector-based
+     *             receiving end, "local" for the in-JVM ends.
+     * @param perWrite The most objects the sending end writes at once.
+     */
+    public static Callable<Object> handoff(String kind, int perWrite,
+            final int batch) throws IOException {
+        final PointToPointQueueSenderEnd<String> sender;
+        final PointToPointQueueReceiverEnd<String> receiver;
+        if (kind.equals("persistent")) {
+            sender = new PointToPointQueueSenderEndPersistent<String>();
+            receiver = new PointToPointQueueReceiverEndNonRobust<String>();
+        } else if (kind.equals("framed")) {
+            Transport<String> transport =
+                new TcpTransport<String>(new SerializationCodec<String>());
+            sender = transport.newSenderEnd();
+            receiver = transport.newReceiverEnd();
+        } else {
+            Transport<String> transport = new LocalTransport<String>();
+            sender = transport.newSenderEnd();
+            receiver = transport.newReceiverEnd();
+        }
+        sender.setBatching(perWrite, 1 << 16, 0, TimeUnit.NANOSECONDS);
+        int port = freePorts();
+        receiver.listenOnPort(port);
+        sender.setReceiver(new InetSocketAddress("localhost", port));
+        return new Fixture() {
+            public Object call() {
+                for (int i = 0; i < batch; i++)
+                    sender.put("MESSAGE");
+                Object last = null;
+                for (int i = 0; i < batch; i++)
+                    last = receiver.poll();
+                return last;
+            }
+
+            public void close() {
+                sender.shutdown();
+                receiver.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Builds a ring of peers in this JVM talking over loopback. Each call
+     * puts the current time at the first peer and polls it at the peer
+     * farthest along the ring, returning the nanoseconds it took. The
+     * other peers get the messages too, and a thread of each polls them,
+     * so they do not pile up during the trial.
+     *
+     * @param engine A DeliveryGuarantee, or "SEQUENCER" for TOTAL order
+     *               through SequencerTotalOrder.
+     */
+    public static Callable<Object> ring(String engine, int peers)
+            throws Exception {
+        boolean sequencer = engine.equals("SEQUENCER");
+        MulticastQueue.DeliveryGuarantee guarantee = sequencer
+            ? MulticastQueue.DeliveryGuarantee.TOTAL
+            : MulticastQueue.DeliveryGuarantee.valueOf(engine);
+        int port = freePorts();
+        final List<MulticastQueueImpl<Long>> ring =
+            new ArrayList<MulticastQueueImpl<Long>>();
+        for (int i = 0; i < peers; i++) {
+            MulticastQueueImpl<Long> peer = new MulticastQueueImpl<Long>(port + i);
+            if (sequencer)
+                peer.setOrderingEngine(new SequencerTotalOrder<Long>());
+            if (i == 0) {
+                peer.start();
+                peer.createGroup(port, guarantee);
+            } else {
+                // Join at the last peer, so the ring is 0, 1, ..., peers-1
+                peer.joinGroup(new InetSocketAddress("localhost",
+                            port + i - 1), guarantee);
+            }
+            ring.add(peer);
+            Thread.sleep(200);
+        }
+        final MulticastQueueImpl<Long> first = ring.get(0);
+        final MulticastQueueImpl<Long> last = ring.get(peers - 1);
+        final Drainer drainer = new Drainer(ring.subList(1, peers - 1));
+        return new Fixture() {
+            public Object call() {
+                first.put(System.nanoTime());
+                long sent = last.poll();
+                return System.nanoTime() - sent;
+            }
+
+            public void close() {
+                drainer.close();
+                for (int i = ring.size() - 1; i >= 0; i--)
+                    ring.get(i).leaveGroup();
+            }
+        };
+    }
+
+    /**
+     * Appends a DATA message to a DeliveryLog in a temporary directory,
+     * which is deleted again when closed. Full segments are deleted as
+     * the trial goes.
+     *
+     * @param bytes The size of the payload.
+     * @param syncMillis How often the log is synced, 0 for never.
+     */
+    public static Callable<Object> deliveryLog(int bytes, int syncMillis)
+            throws IOException {
+        final File directory =
+            Files.createTempDirectory("deliverylog").toFile();
+        final DeliveryLog<Message<String>> log =
+            new DeliveryLog<Message<String>>(directory,
+                    new MessageCodec<String>());
+        log.setSyncInterval(syncMillis, TimeUnit.MILLISECONDS);
+        char[] payload = new char[bytes];
+        Arrays.fill(payload, 'x');
+        final Message<String> msg = new Message<String>(3,
+                Message.Type.DATA, null, new String(payload));
+        msg.setTimestamp(4711);
+        return new Fixture() {
+            public Object call() throws IOException {
+                long offset = log.append(msg);
+                // Keeps the disk from filling up during a trial
+                if ((offset & 0xFFFF) == 0)
+                    log.deleteBefore(offset);
+                return offset;
+            }
+
+            public void close() {
+                log.close();
+                for (File file : directory.listFiles())
+                    file.delete();
+                directory.delete();
+            }
+        };
+    }
+
+    private static abstract class Fixture
+            implements Callable<Object>, Closeable {
+    }
+
+    /**
+     * Polls and drops what peers get, on a thread of each, until closed.
+     */
+    private static class Drainer implements Closeable {
+        private volatile boolean closed;
+
+        Drainer(List<MulticastQueueImpl<Long>> peers) {
+            for (final MulticastQueueImpl<Long> peer : peers) {
+                Thread thread = new Thread() {
+                    public void run() {
+                        while (!closed)
+                            peer.poll(100, TimeUnit.MILLISECONDS);
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
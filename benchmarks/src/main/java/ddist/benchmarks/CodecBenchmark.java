@@ -0,0 +1,34 @@
+package ddist.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding and decoding a small DATA message, with Java's serialization of
+ * the whole Message and with MessageCodec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ "serialization", "compact" })
+    public String codec;
+
+    private Callable<Object> roundTrip;
+
+    @Setup
+    public void setUp() throws Exception {
+        roundTrip = Fixtures.get("codec", codec);
+    }
+
+    @Benchmark
+    public Object encodeAndDecode() throws Exception {
+        return roundTrip.call();
+    }
+}
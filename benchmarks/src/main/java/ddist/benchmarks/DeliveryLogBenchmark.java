@@ -0,0 +1,42 @@
+package ddist.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Appending a delivered message to a DeliveryLog, with the log synced in
+ * the background every syncMillis, or never.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeliveryLogBenchmark {
+
+    @Param({ "64", "1500" })
+    public int bytes;
+
+    @Param({ "0", "100" })
+    public int syncMillis;
+
+    private Callable<Object> append;
+
+    @Setup
+    public void setUp() throws Exception {
+        append = Fixtures.get("deliveryLog", bytes, syncMillis);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.close(append);
+    }
+
+    @Benchmark
+    public Object append() throws Exception {
+        return append.call();
+    }
+}
@@ -0,0 +1,43 @@
+package ddist.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Gets the work to measure from BenchmarkFixtures, which can refer to the
+ * queue in the unnamed package.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Calls the static method of BenchmarkFixtures with the given name.
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> get(String name, Object... args) throws Exception {
+        for (Method method : Class.forName("BenchmarkFixtures").getMethods()) {
+            if (method.getName().equals(name)
+                    && method.getParameterTypes().length == args.length) {
+                try {
+                    return (Callable<Object>)method.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    throw (Exception)e.getCause();
+                }
+            }
+        }
+        throw new NoSuchMethodException("BenchmarkFixtures." + name);
+    }
+
+    /**
+     * Closes the fixture if it holds threads or sockets.
+     */
+    static void close(Callable<Object> fixture) throws IOException {
+        if (fixture instanceof Closeable)
+            ((Closeable)fixture).close();
+    }
+}
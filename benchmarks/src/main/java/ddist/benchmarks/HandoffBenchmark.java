@@ -0,0 +1,47 @@
+package ddist.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Objects per second through a sending end to its receiving end: put()
+ * hands the object to the thread pushing it, which hands it to the
+ * receiving end, which hands it to poll(). perWrite is how many pending
+ * objects the sending end may write at once, see setBatching().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandoffBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({ "persistent", "framed", "local" })
+    public String transport;
+
+    @Param({ "1", "64" })
+    public int perWrite;
+
+    private Callable<Object> batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        batch = Fixtures.get("handoff", transport, perWrite, BATCH);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.close(batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object putAndPoll() throws Exception {
+        return batch.call();
+    }
+}
@@ -0,0 +1,35 @@
+package ddist.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Ordering messages with Message.compareTo() in a PriorityBlockingQueue,
+ * as the TOTAL ring holds them until acknowledged. Each operation adds
+ * and removes size messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriorityQueueBenchmark {
+
+    @Param({ "16", "1024" })
+    public int size;
+
+    private Callable<Object> fillAndDrain;
+
+    @Setup
+    public void setUp() throws Exception {
+        fillAndDrain = Fixtures.get("priorityQueue", size);
+    }
+
+    @Benchmark
+    public Object fillAndDrain() throws Exception {
+        return fillAndDrain.call();
+    }
+}
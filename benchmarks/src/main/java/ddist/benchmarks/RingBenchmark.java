@@ -0,0 +1,46 @@
+package ddist.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time from put() at one peer until poll() returns the message at the
+ * peer farthest along the ring, for rings of peers in this JVM talking
+ * over loopback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingBenchmark {
+
+    @Param({ "2", "4", "8", "16" })
+    public int peers;
+
+    /**
+     * A delivery guarantee, or SEQUENCER for SequencerTotalOrder.
+     */
+    @Param({ "TOTAL", "SEQUENCER", "FIFO" })
+    public String engine;
+
+    private Callable<Object> putAndPoll;
+
+    @Setup
+    public void setUp() throws Exception {
+        putAndPoll = Fixtures.get("ring", engine, peers);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.close(putAndPoll);
+    }
+
+    @Benchmark
+    public Object putToPoll() throws Exception {
+        return putAndPoll.call();
+    }
+}